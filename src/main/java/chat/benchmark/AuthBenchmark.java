@@ -0,0 +1,124 @@
+package chat.benchmark;
+
+import chat.server.AuthService;
+import chat.server.PasswordHasher;
+import chat.server.db.SqliteConnectionManager;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Волна переподключений: users пользователей входят одновременно, каждый в своём виртуальном потоке.
+// Первая волна идёт по старым SHA-256 записям (вход с перехешированием), вторая — по уже
+// перехешированным PBKDF2. Параллельно виртуальный поток-зонд спит по 10 мс и замеряет опоздание
+// пробуждения: так видно, отнимает ли хеширование процессор у обработки сообщений.
+// Запуск: mvn -q compile exec:java -Dexec.mainClass=chat.benchmark.AuthBenchmark -Dexec.args="5000 100000 auth-bench.db"
+public class AuthBenchmark {
+    private static final int DEFAULT_USERS = 5_000;
+    private static final String DEFAULT_DB_FILE = "auth-bench.db";
+    private static final String PASSWORD = "Gh5!xV9@nB2";
+    private static final long PROBE_INTERVAL_MS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_USERS;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : PasswordHasher.DEFAULT_ITERATIONS;
+        String dbFile = args.length > 2 ? args[2] : DEFAULT_DB_FILE;
+        int authThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        new File(dbFile).delete();
+
+        try (SqliteConnectionManager db = new SqliteConnectionManager("jdbc:sqlite:" + dbFile, 4, 16 * 1024)) {
+            AuthService auth = new AuthService(db, 4, new PasswordHasher(iterations), authThreads, users);
+            insertLegacyUsers(db, users);
+            System.out.printf("%,d users, PBKDF2 %,d iterations, %d auth threads, %d cores%n%n",
+                    users, iterations, authThreads, Runtime.getRuntime().availableProcessors());
+
+            System.out.printf("%-22s %10s %10s %10s %10s %8s %14s%n",
+                    "wave", "logins/s", "p50 ms", "p99 ms", "max ms", "failed", "probe p99 ms");
+            herd(auth, "legacy rows (rehash)", users);
+            herd(auth, "pbkdf2 rows", users);
+            auth.close();
+        }
+    }
+
+    private static void herd(AuthService auth, String label, int users) throws InterruptedException {
+        long[] nanos = new long[users];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            int index = i;
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long begin = System.nanoTime();
+                if (auth.authenticate("user" + index, PASSWORD) != AuthService.Result.OK) {
+                    failed.incrementAndGet();
+                }
+                nanos[index] = System.nanoTime() - begin;
+            }));
+        }
+
+        List<Long> lateness = new ArrayList<>();
+        Thread probe = Thread.ofVirtual().start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                long begin = System.nanoTime();
+                try {
+                    Thread.sleep(PROBE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                lateness.add(System.nanoTime() - begin - PROBE_INTERVAL_MS * 1_000_000);
+            }
+        });
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        probe.interrupt();
+        probe.join();
+
+        Arrays.sort(nanos);
+        long[] probeNanos = lateness.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%-22s %10.0f %10.1f %10.1f %10.1f %8d %14.2f%n", label,
+                users / (elapsed / 1e9), percentile(nanos, 0.50), percentile(nanos, 0.99), nanos[users - 1] / 1e6,
+                failed.get(), probeNanos.length == 0 ? 0.0 : percentile(probeNanos, 0.99));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1_000_000.0;
+    }
+
+    // Пользователи в прежнем формате, как в базе до перехода на PBKDF2
+    private static void insertLegacyUsers(SqliteConnectionManager db, int users) throws SQLException {
+        String legacy = PasswordHasher.legacyHash(PASSWORD);
+        db.write(connection -> {
+            Connection jdbc = connection.getConnection();
+            jdbc.setAutoCommit(false);
+            try {
+                PreparedStatement pstmt = connection.prepare("INSERT INTO users(login, password) VALUES(?, ?)");
+                for (int i = 0; i < users; i++) {
+                    pstmt.setString(1, "user" + i);
+                    pstmt.setString(2, legacy);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                jdbc.commit();
+            } finally {
+                jdbc.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+}
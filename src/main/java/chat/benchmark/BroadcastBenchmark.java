@@ -0,0 +1,68 @@
+package chat.benchmark;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import chat.server.Frame;
+import com.google.gson.Gson;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+// Процессорное время одной рассылки в зависимости от числа пользователей:
+// прежний путь (Message + toJson + writeUTF на каждого получателя) против одного Frame на рассылку.
+// Запуск: mvn -q compile exec:java -Dexec.mainClass=chat.benchmark.BroadcastBenchmark
+public class BroadcastBenchmark {
+    private static final int[] USER_COUNTS = {10, 100, 1_000, 10_000};
+    private static final int SENDS_PER_ROUND = 400_000;
+    private static final String TEXT = "Привет всем! Кто-нибудь уже разобрался с домашним заданием по сетям?";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final Gson GSON = new Gson();
+
+    public static void main(String[] args) throws IOException {
+        DataOutputStream sink = new DataOutputStream(OutputStream.nullOutputStream());
+
+        // Прогрев JIT
+        for (int users : USER_COUNTS) {
+            legacyBroadcasts(sink, users, broadcastsFor(users) / 4);
+            frameBroadcasts(sink, users, broadcastsFor(users) / 4);
+        }
+
+        System.out.printf("%8s %18s %18s %10s%n", "users", "legacy us/bcast", "frame us/bcast", "speedup");
+        for (int users : USER_COUNTS) {
+            int broadcasts = broadcastsFor(users);
+            double legacy = legacyBroadcasts(sink, users, broadcasts) / 1000.0 / broadcasts;
+            double frame = frameBroadcasts(sink, users, broadcasts) / 1000.0 / broadcasts;
+            System.out.printf("%8d %18.1f %18.1f %9.1fx%n", users, legacy, frame, legacy / frame);
+        }
+    }
+
+    private static int broadcastsFor(int users) {
+        return Math.max(20, SENDS_PER_ROUND / users);
+    }
+
+    private static long legacyBroadcasts(DataOutputStream sink, int users, int broadcasts) throws IOException {
+        long start = THREADS.getCurrentThreadCpuTime();
+        for (int b = 0; b < broadcasts; b++) {
+            for (int u = 0; u < users; u++) {
+                Message msg = new Message(CommandType.PUBLIC_MESSAGE, "alice", TEXT);
+                sink.writeUTF(GSON.toJson(msg));
+            }
+        }
+        return THREADS.getCurrentThreadCpuTime() - start;
+    }
+
+    private static long frameBroadcasts(DataOutputStream sink, int users, int broadcasts) throws IOException {
+        long start = THREADS.getCurrentThreadCpuTime();
+        for (int b = 0; b < broadcasts; b++) {
+            Frame frame = Frame.of(new Message(CommandType.PUBLIC_MESSAGE, "alice", TEXT));
+            for (int u = 0; u < users; u++) {
+                sink.write(frame.bytes());
+            }
+        }
+        return THREADS.getCurrentThreadCpuTime() - start;
+    }
+}
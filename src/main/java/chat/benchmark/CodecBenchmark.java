@@ -0,0 +1,63 @@
+package chat.benchmark;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import chat.common.codec.Codecs;
+import chat.common.codec.MessageCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Размер кадра и ns/op кодирования/декодирования: Gson+writeUTF против бинарного формата.
+// Запуск: mvn -q compile exec:java -Dexec.mainClass=chat.benchmark.CodecBenchmark
+public class CodecBenchmark {
+    private static final int ITERATIONS = 1_000_000;
+    private static final Message[] SAMPLES = {
+            new Message(CommandType.PUBLIC_MESSAGE, "alice", "ок"),
+            new Message(CommandType.PUBLIC_MESSAGE, "bob_1990", "Привет всем! Кто-нибудь уже разобрался с домашним заданием по сетям?"),
+            new Message(CommandType.CLIENT_MESSAGE, "Server", "[\"alice\",\"bob_1990\",\"carol\",\"dave\",\"eve\",\"mallory\"]"),
+    };
+
+    private static volatile Object blackhole;
+
+    public static void main(String[] args) throws IOException {
+        MessageCodec[] codecs = {Codecs.JSON, Codecs.BINARY};
+
+        for (MessageCodec codec : codecs) {
+            run(codec, ITERATIONS / 5);
+        }
+
+        System.out.printf("%-8s %14s %14s %14s%n", "codec", "avg bytes", "encode ns/op", "decode ns/op");
+        for (MessageCodec codec : codecs) {
+            long[] result = run(codec, ITERATIONS);
+            System.out.printf("%-8s %14.1f %14.1f %14.1f%n", codec.getName(),
+                    (double) result[0] / SAMPLES.length,
+                    (double) result[1] / ITERATIONS,
+                    (double) result[2] / ITERATIONS);
+        }
+    }
+
+    // {суммарный размер образцов, ns на кодирование, ns на декодирование}
+    private static long[] run(MessageCodec codec, int iterations) throws IOException {
+        byte[][] frames = new byte[SAMPLES.length][];
+        long totalBytes = 0;
+        for (int i = 0; i < SAMPLES.length; i++) {
+            frames[i] = codec.encode(SAMPLES[i]);
+            totalBytes += frames[i].length;
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole = codec.encode(SAMPLES[i % SAMPLES.length]);
+        }
+        long encodeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            blackhole = codec.decode(ByteBuffer.wrap(frames[i % frames.length]));
+        }
+        long decodeNanos = System.nanoTime() - start;
+
+        return new long[]{totalBytes, encodeNanos, decodeNanos};
+    }
+}
@@ -0,0 +1,150 @@
+package chat.benchmark;
+
+import chat.common.SearchPage;
+import chat.server.AuthService;
+import chat.server.db.SearchIndex;
+import chat.server.db.SqliteConnectionManager;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Задержка полнотекстового поиска на синтетической базе: сначала заполняется messages, затем
+// индекс строится той же дозаливкой, что и на сервере, и замеряются p50/p95/p99 запросов.
+// Готовая база переиспользуется при повторном запуске.
+// Запуск: mvn -q compile exec:java -Dexec.mainClass=chat.benchmark.SearchBenchmark -Dexec.args="10000000 search-bench.db"
+public class SearchBenchmark {
+    private static final int DEFAULT_ROWS = 10_000_000;
+    private static final String DEFAULT_DB_FILE = "search-bench.db";
+    private static final int VOCABULARY_SIZE = 20_000;
+    private static final int INSERT_BATCH = 50_000;
+    private static final int WARMUP_QUERIES = 20;
+    private static final int MEASURED_QUERIES = 200;
+    private static final int PAGE_SIZE = 20;
+    private static final int RANK_WINDOW = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        String dbFile = args.length > 1 ? args[1] : DEFAULT_DB_FILE;
+        String[] vocabulary = vocabulary();
+
+        try (SqliteConnectionManager db = new SqliteConnectionManager("jdbc:sqlite:" + dbFile, 4, 64 * 1024)) {
+            AuthService schema = new AuthService(db, 1);
+            schema.close();
+
+            long existing = count(db);
+            if (existing < rows) {
+                long start = System.nanoTime();
+                populate(db, vocabulary, existing, rows);
+                System.out.printf("Inserted %,d messages in %,d ms%n", rows - existing, (System.nanoTime() - start) / 1_000_000);
+            }
+            System.out.printf("Database %s: %,d messages (%,d MB)%n", dbFile, count(db), new File(dbFile).length() >> 20);
+
+            long start = System.nanoTime();
+            try (SearchIndex index = new SearchIndex(db, 50_000, 0, RANK_WINDOW)) {
+                index.backfill();
+                System.out.printf("Index ready in %,d ms%n%n", (System.nanoTime() - start) / 1_000_000);
+
+                System.out.printf("%-28s %8s %10s %10s %10s%n", "query", "offset", "p50 ms", "p95 ms", "p99 ms");
+                run(index, "frequent word", vocabulary[0], 0);
+                run(index, "mid-frequency word", vocabulary[200], 0);
+                run(index, "rare word", vocabulary[VOCABULARY_SIZE - 1], 0);
+                run(index, "two words (AND)", vocabulary[3] + " " + vocabulary[40], 0);
+                run(index, "prefix", vocabulary[500].substring(0, 3) + "*", 0);
+                run(index, "mid-frequency, deep page", vocabulary[200], 1000);
+            }
+        }
+    }
+
+    private static void run(SearchIndex index, String label, String query, int offset) throws SQLException {
+        for (int i = 0; i < WARMUP_QUERIES; i++) {
+            index.search(query, List.of(), offset, PAGE_SIZE);
+        }
+        long[] nanos = new long[MEASURED_QUERIES];
+        int found = 0;
+        for (int i = 0; i < MEASURED_QUERIES; i++) {
+            long start = System.nanoTime();
+            SearchPage page = index.search(query, List.of(), offset, PAGE_SIZE);
+            nanos[i] = System.nanoTime() - start;
+            found = page.getResults().size();
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-28s %8d %10.2f %10.2f %10.2f   (%d hits on page)%n", label, offset,
+                percentile(nanos, 0.50), percentile(nanos, 0.95), percentile(nanos, 0.99), found);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1_000_000.0;
+    }
+
+    private static long count(SqliteConnectionManager db) throws SQLException {
+        return db.read(connection -> {
+            try (ResultSet rs = connection.prepare("SELECT COALESCE(MAX(id), 0) FROM messages").executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+    }
+
+    // Частоты слов по закону Ципфа, как в живой переписке: несколько очень частых слов и длинный хвост
+    private static void populate(SqliteConnectionManager db, String[] vocabulary, long from, int rows) throws SQLException {
+        Random random = new Random(42 + from);
+        double[] cumulative = new double[vocabulary.length];
+        double sum = 0;
+        for (int i = 0; i < vocabulary.length; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        double total = sum;
+
+        for (long id = from + 1; id <= rows; ) {
+            long batchEnd = Math.min(rows, id + INSERT_BATCH - 1);
+            long batchStart = id;
+            db.write(connection -> {
+                Connection jdbc = connection.getConnection();
+                jdbc.setAutoCommit(false);
+                try {
+                    PreparedStatement pstmt = connection.prepare("INSERT INTO messages(id, sender, message) VALUES(?, ?, ?)");
+                    StringBuilder text = new StringBuilder();
+                    for (long i = batchStart; i <= batchEnd; i++) {
+                        text.setLength(0);
+                        int words = 4 + random.nextInt(13);
+                        for (int w = 0; w < words; w++) {
+                            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                            text.append(vocabulary[Math.min(vocabulary.length - 1, index < 0 ? -index - 1 : index)]).append(' ');
+                        }
+                        pstmt.setLong(1, i);
+                        pstmt.setString(2, "user" + random.nextInt(1000));
+                        pstmt.setString(3, text.toString());
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                    jdbc.commit();
+                } finally {
+                    jdbc.setAutoCommit(true);
+                }
+                return null;
+            });
+            id = batchEnd + 1;
+        }
+    }
+
+    private static String[] vocabulary() {
+        Random random = new Random(7);
+        String letters = "абвгдежзиклмнопрстуфхцчшэюя";
+        String[] words = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(8);
+            for (int c = 0; c < length; c++) {
+                word.append(letters.charAt(random.nextInt(letters.length())));
+            }
+            words[i] = word.toString() + i;
+        }
+        return words;
+    }
+}
@@ -5,7 +5,6 @@ import chat.client.controller.LoginController;
 import chat.client.model.Network;
 import chat.client.util.AppIcon;
 import javafx.application.Application;
-import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -29,29 +28,14 @@ public class ClientApp extends Application {
         }
         this.network = new Network();
 
-        try {
-            network.connect();
-        } catch (Exception e) {
-            Platform.runLater(() -> {
-                chat.client.controller.AlertDialogController.showError(
-                        "Ошибка подключения",
-                        "Не удалось подключиться к серверу"
-                );
-            });
-            System.err.println("Не удалось подключиться к серверу: " + e.getMessage());
-        }
-
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/login.fxml"));
         Parent root = loader.load();
 
         LoginController controller = loader.getController();
         controller.init(network, this);
 
-        network.startReading(
-                controller::handleAuthOk,
-                controller::showAlert,
-                controller::showInfo
-        );
+        // Подключение идёт в фоне: окно входа появляется сразу, даже если сервер отвечает медленно
+        network.start(controller);
 
         primaryStage.setTitle("Вход в чат");
         primaryStage.setScene(new Scene(root));
@@ -15,6 +15,15 @@ public class ClientConfig {
     private int connectionTimeout;
     private int reconnectAttempts;
     private int reconnectDelay;
+    private int reconnectMaxDelay;
+    private String protocol;
+    private int historyPageSize;
+    private int searchPageSize;
+    private int scrollbackLines;
+    private int outboundQueueSize;
+    private int heartbeatInterval;
+    private int idleTimeout;
+    private int ackInterval;
 
     public ClientConfig() {
         loadConfig();
@@ -38,6 +47,15 @@ public class ClientConfig {
         connectionTimeout = Integer.parseInt(props.getProperty("client.connection.timeout", "5000"));
         reconnectAttempts = Integer.parseInt(props.getProperty("client.reconnect.attempts", "3"));
         reconnectDelay = Integer.parseInt(props.getProperty("client.reconnect.delay", "1000"));
+        reconnectMaxDelay = Integer.parseInt(props.getProperty("client.reconnect.max.delay", "30000"));
+        protocol = props.getProperty("client.protocol", "binary");
+        historyPageSize = Integer.parseInt(props.getProperty("client.history.page.size", "50"));
+        searchPageSize = Integer.parseInt(props.getProperty("client.search.page.size", "20"));
+        scrollbackLines = Integer.parseInt(props.getProperty("client.scrollback.lines", "2000"));
+        outboundQueueSize = Integer.parseInt(props.getProperty("client.outbound.queue.size", "1000"));
+        heartbeatInterval = Integer.parseInt(props.getProperty("client.heartbeat.interval.ms", "15000"));
+        idleTimeout = Integer.parseInt(props.getProperty("client.idle.timeout.ms", "45000"));
+        ackInterval = Integer.parseInt(props.getProperty("client.ack.interval.ms", "1000"));
     }
 
     public String getServerHost() { return serverHost; }
@@ -45,4 +63,13 @@ public class ClientConfig {
     public int getConnectionTimeout() { return connectionTimeout; }
     public int getReconnectAttempts() { return reconnectAttempts; }
     public int getReconnectDelay() { return reconnectDelay; }
+    public int getReconnectMaxDelay() { return reconnectMaxDelay; }
+    public String getProtocol() { return protocol; }
+    public int getHistoryPageSize() { return historyPageSize; }
+    public int getSearchPageSize() { return searchPageSize; }
+    public int getScrollbackLines() { return scrollbackLines; }
+    public int getOutboundQueueSize() { return outboundQueueSize; }
+    public int getHeartbeatInterval() { return heartbeatInterval; }
+    public int getIdleTimeout() { return idleTimeout; }
+    public int getAckInterval() { return ackInterval; }
 }
\ No newline at end of file
@@ -2,18 +2,31 @@ package chat.client.controller;
 
 import chat.client.ClientApp;
 import chat.client.model.Network;
+import chat.client.model.NetworkListener;
 import chat.client.util.AppIcon;
 import chat.common.CommandType;
+import chat.common.HistoryPage;
 import chat.common.Message;
+import chat.common.PresenceUpdate;
+import chat.common.SearchPage;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.Control;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.control.TextField;
 import javafx.stage.Stage;
 import org.slf4j.Logger;
@@ -22,19 +35,59 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class ChatController {
+public class ChatController implements NetworkListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(ChatController.class);
+    private static final String LOCAL_SENDER = "Client";
+    // Отступы и полоса прокрутки, чтобы перенос строки не вызывал горизонтальную прокрутку
+    private static final double CELL_WIDTH_INSET = 40;
+    private static final String SEARCH_COMMAND = "/search ";
+    private static final String NEXT_COMMAND = "/next";
+    private static final String JOIN_COMMAND = "/join ";
+    private static final String LEAVE_COMMAND = "/leave ";
+    private static final String PRIVATE_COMMAND = "/msg ";
+    // "#комната текст" — сообщение в комнату
+    private static final String ROOM_PREFIX = "#";
+    private static final int MAX_TRACKED_IDS = 5000;
     private Network network;
     private final Gson gson = new Gson();
     private ClientApp clientApp;
     private Stage primaryStage;
 
-    private List<String> currentUsers = new ArrayList<>();
+    private final Set<String> currentUsers = new LinkedHashSet<>();
+    // Версия списка с сервера; -1 — сервер версий не присылает, события применяются как есть
+    private long presenceVersion = -1;
+    private boolean listRequested = false;
+
+    // id уже показанных сообщений: после переподключения сервер присылает пропущенное с запасом
+    private final Set<Long> shownIds = new LinkedHashSet<>();
+
+    // Входящие сообщения копятся здесь из любого потока и разбираются раз за кадр (AnimationTimer):
+    // сколько бы кадров ни пришло, в список уходит одно добавление за кадр, и не больше scrollback
+    // строк. Поля ниже трогаются только в потоке FX
+    private final Queue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private final List<String> pendingLines = new ArrayList<>();
+    private AnimationTimer renderTimer;
+    private int scrollback;
+
+    // Подгрузка истории при прокрутке к началу
+    private Long oldestMessageId;
+    private boolean historyLoading = false;
+    private boolean historyExhausted = false;
+    private final List<Message> pendingHistory = new ArrayList<>();
+
+    // Последний поиск, чтобы /next мог запросить следующую страницу
+    private String lastSearchQuery;
+    private int nextSearchOffset;
 
     @FXML
-    private TextArea chatArea;
+    private ListView<String> chatList;
     @FXML
     private TextField messageField;
     @FXML
@@ -44,7 +97,6 @@ public class ChatController {
         this.network = network;
         this.clientApp = clientApp;
         this.primaryStage = primaryStage;
-        this.network.setController(this);
 
         userCountLabel.setStyle("-fx-text-fill: #38b50fff; -fx-font-size: 13px; -fx-font-weight: 600; -fx-cursor: hand;");
 
@@ -58,15 +110,75 @@ public class ChatController {
             event.consume();
             handleLogout();
         });
+
+        this.scrollback = network.getConfig().getScrollbackLines();
+        chatList.setCellFactory(list -> new ChatLineCell());
+        chatList.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            if (newSkin != null) {
+                watchScrollTop();
+            }
+        });
+        renderTimer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                drainInbound();
+            }
+        };
+        renderTimer.start();
+        network.setListener(this);
+    }
+
+    // Прокрутка к самому началу подгружает более старую историю
+    private void watchScrollTop() {
+        for (Node node : chatList.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                bar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                    if (newValue.doubleValue() <= bar.getMin() && oldValue.doubleValue() > bar.getMin()) {
+                        requestOlderHistory();
+                    }
+                });
+            }
+        }
+    }
+
+    private void requestOlderHistory() {
+        if (historyLoading || historyExhausted || oldestMessageId == null) {
+            return;
+        }
+        historyLoading = true;
+        network.sendHistoryRequest(oldestMessageId);
     }
 
     @FXML
     private void handleSend() {
         String messageText = messageField.getText().trim();
-        if (!messageText.isEmpty()) {
+        if (messageText.isEmpty()) {
+            return;
+        }
+        if (messageText.startsWith(SEARCH_COMMAND)) {
+            lastSearchQuery = messageText.substring(SEARCH_COMMAND.length()).trim();
+            nextSearchOffset = 0;
+            network.sendSearchRequest(lastSearchQuery, 0);
+        } else if (messageText.equals(NEXT_COMMAND) && lastSearchQuery != null) {
+            network.sendSearchRequest(lastSearchQuery, nextSearchOffset);
+        } else if (messageText.startsWith(JOIN_COMMAND)) {
+            network.sendJoinRoom(messageText.substring(JOIN_COMMAND.length()).trim());
+        } else if (messageText.startsWith(LEAVE_COMMAND)) {
+            network.sendLeaveRoom(messageText.substring(LEAVE_COMMAND.length()).trim());
+        } else if (messageText.startsWith(PRIVATE_COMMAND)) {
+            String[] parts = messageText.substring(PRIVATE_COMMAND.length()).trim().split("\\s+", 2);
+            if (parts.length == 2) {
+                network.sendPrivateMessage(parts[0], parts[1]);
+            } else {
+                showError("Формат: /msg <логин> <текст>");
+            }
+        } else if (messageText.startsWith(ROOM_PREFIX) && messageText.indexOf(' ') > 1) {
+            int space = messageText.indexOf(' ');
+            network.sendRoomMessage(messageText.substring(1, space), messageText.substring(space + 1).trim());
+        } else {
             network.sendPublicMessage(messageText);
-            messageField.clear();
         }
+        messageField.clear();
     }
 
     @FXML
@@ -82,6 +194,7 @@ public class ChatController {
         try {
             LOGGER.info("User {} is logging out", network.getUsername());
 
+            renderTimer.stop();
             network.sendLogoutMessage();
             network.close();
 
@@ -108,33 +221,193 @@ public class ChatController {
         }
     }
 
-    public void handleMessage(Message message) {
-        Platform.runLater(() -> {
-            switch (message.getType()) {
-                case PUBLIC_MESSAGE:
-                    chatArea.appendText(String.format("%s: %s%n", message.getSender(), message.getMessage()));
-                    break;
-                case CLIENT_MESSAGE:
-                    updateUserList(message.getMessage());
-                    break;
-                case ERROR:
-                    if (!message.getMessage().contains("logout")) {
-                        showError(message.getMessage());
-                    }
-                    break;
-                case USER_LOGOUT:
-                    chatArea.appendText(String.format("[СИСТЕМА]: %s покинул(а) чат.%n", message.getSender()));
+    // Вызывается из потока чтения сети
+    @Override
+    public void onMessage(Message message) {
+        inbound.add(message);
+    }
+
+    @Override
+    public void onStatus(String text) {
+        showError(text);
+    }
+
+    @Override
+    public void onDisconnected(String reason) {
+        showError(reason);
+    }
+
+    private void drainInbound() {
+        Message message;
+        while ((message = inbound.poll()) != null) {
+            render(message);
+        }
+        if (pendingLines.isEmpty()) {
+            return;
+        }
+        ObservableList<String> items = chatList.getItems();
+        // Следим за новыми строками, только если пользователь и так внизу, а не читает историю
+        boolean following = items.isEmpty() || isLastLineVisible();
+        List<String> batch = pendingLines.size() > scrollback
+                ? pendingLines.subList(pendingLines.size() - scrollback, pendingLines.size())
+                : pendingLines;
+        items.addAll(batch);
+        pendingLines.clear();
+        // Пока пользователь читает подгруженную историю, старые строки срезаются только при двойном запасе
+        int limit = following ? scrollback : 2 * scrollback;
+        if (items.size() > limit) {
+            items.remove(0, items.size() - limit);
+        }
+        if (following) {
+            chatList.scrollTo(items.size() - 1);
+        }
+    }
+
+    private boolean isLastLineVisible() {
+        VirtualFlow<?> flow = (VirtualFlow<?>) chatList.lookup(".virtual-flow");
+        if (flow == null) {
+            return true;
+        }
+        IndexedCell<?> last = flow.getLastVisibleCell();
+        return last == null || last.getIndex() >= chatList.getItems().size() - 1;
+    }
+
+    private void appendLine(String line) {
+        pendingLines.add(line);
+    }
+
+    private void render(Message message) {
+        switch (message.getType()) {
+            case PUBLIC_MESSAGE:
+                if (!firstTimeShown(message)) {
                     break;
-                case REG_OK:
-                    AlertDialogController.showInfo("Успешно", message.getMessage());
+                }
+                rememberOldest(message);
+                appendLine(String.format("%s: %s", message.getSender(), message.getMessage()));
+                break;
+            case ROOM_MESSAGE:
+                if (!firstTimeShown(message)) {
                     break;
-                default:
+                }
+                appendLine(String.format("[#%s] %s: %s", message.getRoom(), message.getSender(), message.getMessage()));
+                break;
+            case PRIVATE_MESSAGE:
+                // Неподтверждённое личное сообщение сервер после обрыва доставляет ещё раз
+                if (!firstTimeShown(message)) {
                     break;
+                }
+                appendLine(String.format("[ЛС] %s → %s: %s", message.getSender(), message.getRecipient(), message.getMessage()));
+                break;
+            case JOIN:
+            case LEAVE:
+                appendLine(String.format("[#%s]: %s %s", message.getRoom(), message.getSender(), message.getMessage()));
+                break;
+            case HISTORY_PAGE:
+                handleHistoryPage(message.getMessage());
+                break;
+            case SEARCH_RESULT:
+                showSearchResults(message.getMessage());
+                break;
+            case CLIENT_MESSAGE:
+                updateUserList(message.getMessage(), message.getId());
+                break;
+            case ERROR:
+                if (!message.getMessage().contains("logout")) {
+                    appendLine(String.format("[СИСТЕМА]: %s", message.getMessage()));
+                }
+                break;
+            case USER_JOINED:
+                applyPresence(message.getId(), List.of(message.getSender()), List.of());
+                break;
+            case PRESENCE_UPDATE:
+                handlePresenceUpdate(message);
+                break;
+            case USER_LOGOUT:
+                applyPresence(message.getId(), List.of(), List.of(message.getSender()));
+                appendLine(String.format("[СИСТЕМА]: %s покинул(а) чат.", message.getSender()));
+                break;
+            case REG_OK:
+                AlertDialogController.showInfo("Успешно", message.getMessage());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean firstTimeShown(Message message) {
+        if (message.getId() == null) {
+            return true;
+        }
+        if (!shownIds.add(message.getId())) {
+            return false;
+        }
+        if (shownIds.size() > MAX_TRACKED_IDS) {
+            Iterator<Long> oldest = shownIds.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return true;
+    }
+
+    private void rememberOldest(Message message) {
+        if (message.getId() != null && (oldestMessageId == null || message.getId() < oldestMessageId)) {
+            oldestMessageId = message.getId();
+        }
+    }
+
+    private void handleHistoryPage(String json) {
+        try {
+            HistoryPage page = gson.fromJson(json, HistoryPage.class);
+            if (page.getMessages() != null) {
+                pendingHistory.addAll(page.getMessages());
             }
-        });
+            if (!page.isLast()) {
+                return;
+            }
+            historyLoading = false;
+            historyExhausted = !page.isHasMore();
+
+            List<String> lines = new ArrayList<>(pendingHistory.size());
+            for (Message message : pendingHistory) {
+                rememberOldest(message);
+                lines.add(String.format("%s: %s", message.getSender(), message.getMessage()));
+            }
+            pendingHistory.clear();
+            if (!lines.isEmpty()) {
+                chatList.getItems().addAll(0, lines);
+                // Оставляем на экране то, что пользователь видел до подгрузки
+                chatList.scrollTo(lines.size());
+            }
+        } catch (Exception e) {
+            historyLoading = false;
+            LOGGER.error("Ошибка разбора страницы истории.", e);
+        }
     }
 
-    private void updateUserList(String jsonUserList) {
+    private void showSearchResults(String json) {
+        try {
+            SearchPage page = gson.fromJson(json, SearchPage.class);
+            List<Message> results = page.getResults();
+            if (results == null || results.isEmpty()) {
+                appendLine(String.format("[ПОИСК]: по запросу \"%s\" ничего не найдено.", page.getQuery()));
+                return;
+            }
+            appendLine(String.format("[ПОИСК]: \"%s\", результаты %d–%d:", page.getQuery(),
+                    page.getOffset() + 1, page.getOffset() + results.size()));
+            for (Message result : results) {
+                String where = result.getRoom() == null ? "" : "#" + result.getRoom() + " ";
+                appendLine(String.format("  [%s] %s%s: %s", result.getTimestamp(), where, result.getSender(), result.getMessage()));
+            }
+            if (page.isHasMore()) {
+                appendLine(String.format("  Ещё результаты: %s", NEXT_COMMAND));
+            }
+            nextSearchOffset = page.getOffset() + results.size();
+        } catch (Exception e) {
+            LOGGER.error("Ошибка разбора результатов поиска.", e);
+        }
+    }
+
+    private void updateUserList(String jsonUserList, Long version) {
         try {
             Type listType = new TypeToken<List<String>>() {
             }.getType();
@@ -142,20 +415,57 @@ public class ChatController {
 
             currentUsers.clear();
             currentUsers.addAll(users);
+            presenceVersion = version == null ? -1 : version;
+            listRequested = false;
 
-            userCountLabel.setText(users.size() + " онлайн");
+            updateUserCount();
         } catch (Exception e) {
             LOGGER.error("Ошибка парсинга списка пользователей.", e);
         }
     }
 
+    private void handlePresenceUpdate(Message message) {
+        try {
+            PresenceUpdate update = gson.fromJson(message.getMessage(), PresenceUpdate.class);
+            List<String> joined = update.getJoined() == null ? List.of() : update.getJoined();
+            List<String> left = update.getLeft() == null ? List.of() : update.getLeft();
+            applyPresence(message.getId(), joined, left);
+            if (!left.isEmpty()) {
+                appendLine(String.format("[СИСТЕМА]: чат покинули: %s.", String.join(", ", left)));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Ошибка разбора изменений списка пользователей.", e);
+        }
+    }
+
+    private void applyPresence(Long version, List<String> joined, List<String> left) {
+        if (version != null && presenceVersion >= 0) {
+            if (version <= presenceVersion) {
+                return;
+            }
+            // Пропущено событие: список мог разойтись с сервером, просим полный снимок
+            if (version > presenceVersion + 1 && !listRequested) {
+                listRequested = true;
+                network.sendListRequest();
+            }
+            presenceVersion = version;
+        }
+        currentUsers.addAll(joined);
+        currentUsers.removeAll(left);
+        updateUserCount();
+    }
+
+    private void updateUserCount() {
+        userCountLabel.setText(currentUsers.size() + " онлайн");
+    }
+
     private void showUsersList() {
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/fxml/users_list.fxml"));
             Parent root = loader.load();
 
             UsersListController controller = loader.getController();
-            controller.setUsers(currentUsers);
+            controller.setUsers(new ArrayList<>(currentUsers));
 
             Stage stage = new Stage();
             controller.setStage(stage);
@@ -173,9 +483,27 @@ public class ChatController {
         }
     }
 
+    // Можно вызывать из любого потока: строка попадёт в чат со следующим кадром
     public void showError(String errorMessage) {
-        Platform.runLater(() -> {
-            chatArea.appendText(String.format("[СИСТЕМА]: %s%n", errorMessage));
-        });
+        inbound.add(new Message(CommandType.ERROR, LOCAL_SENDER, errorMessage));
+    }
+
+    // Строка с переносом по ширине списка
+    private static final class ChatLineCell extends ListCell<String> {
+        private ChatLineCell() {
+            setWrapText(true);
+            setMaxWidth(Control.USE_PREF_SIZE);
+            listViewProperty().addListener((observable, oldList, list) -> {
+                if (list != null) {
+                    prefWidthProperty().bind(list.widthProperty().subtract(CELL_WIDTH_INSET));
+                }
+            });
+        }
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            setText(empty ? null : item);
+        }
     }
 }
\ No newline at end of file
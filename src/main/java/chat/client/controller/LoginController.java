@@ -2,6 +2,7 @@ package chat.client.controller;
 
 import chat.client.ClientApp;
 import chat.client.model.Network;
+import chat.client.model.NetworkListener;
 import chat.common.validation.RegistrationValidator;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -10,7 +11,7 @@ import javafx.scene.control.TextField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class LoginController {
+public class LoginController implements NetworkListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(LoginController.class);
     private Network network;
     private ClientApp clientApp;
@@ -57,7 +58,9 @@ public class LoginController {
         network.sendRegisterMessage(login, password);
     }
 
-    public void handleAuthOk() {
+    // События сети приходят из её потоков, окно трогаем только из потока JavaFX
+    @Override
+    public void onAuthenticated(String username) {
         Platform.runLater(() -> {
             try {
                 clientApp.showChatWindow();
@@ -68,12 +71,21 @@ public class LoginController {
         });
     }
 
-    public void showAlert(String message) {
-        AlertDialogController.showError("Ошибка", message);
-        passwordField.clear();
+    @Override
+    public void onAuthFailed(String reason) {
+        Platform.runLater(() -> {
+            AlertDialogController.showError("Ошибка", reason);
+            passwordField.clear();
+        });
+    }
+
+    @Override
+    public void onRegistered(String text) {
+        Platform.runLater(() -> AlertDialogController.showInfo("Успешно", text));
     }
 
-    public void showInfo(String message) {
-        AlertDialogController.showInfo("Успешно", message);
+    @Override
+    public void onDisconnected(String reason) {
+        Platform.runLater(() -> AlertDialogController.showError("Ошибка подключения", reason));
     }
-}
\ No newline at end of file
+}
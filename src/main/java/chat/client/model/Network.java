@@ -1,54 +1,121 @@
 package chat.client.model;
 
 import chat.client.config.ClientConfig;
-import chat.client.controller.ChatController;
 import chat.client.exception.ConnectionException;
 import chat.common.CommandType;
 import chat.common.Message;
-import com.google.gson.Gson;
-import javafx.application.Platform;
+import chat.common.codec.Codecs;
+import chat.common.codec.MessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+// Два потока на соединение: network-reader подключается, читает и разбирает кадры и ведёт
+// переподключение, network-writer забирает сообщения из ограниченной очереди и пишет в сокет.
+// Вызовы из интерфейса только кладут сообщение в очередь и никогда не ждут сеть.
 public class Network {
     private static final Logger LOGGER = LoggerFactory.getLogger(Network.class);
 
     private final ClientConfig config;
-    private final Gson gson;
     private final String host;
     private final int port;
-    private Socket socket;
-    private DataInputStream in;
-    private DataOutputStream out;
+    // Публичный чат в lastSeen — под этим ключом, комнаты — под своими именами
+    private static final String PUBLIC_STREAM = "";
+    // Метка в очереди отправки: всё, что до неё, дописать, затем закрыть сокет
+    private static final Message CLOSE = new Message();
+
+    private volatile Socket socket;
+    private volatile DataInputStream in;
+    private volatile DataOutputStream out;
+    // Писать можно только в подключённый и вошедший (или ещё входящий) сокет; на время
+    // переподключения писатель ждёт, а RESUME отправляет читающий поток
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition writableChanged = writeLock.newCondition();
+    private volatile boolean writable = false;
+    // Выход или закрытие окна: обрыв после этого не повод переподключаться
+    private volatile boolean closing = false;
+
+    private final BlockingQueue<Message> outbound;
+    private Thread writer;
+    private ScheduledExecutorService heartbeat;
+    // Время последнего кадра от сервера (System.nanoTime) и был ли с тех пор отправлен PING
+    private volatile long lastReceived = System.nanoTime();
+    private volatile boolean pingSent = false;
+    // id последнего полученного сообщения чата и последнего подтверждённого ACK. Подтверждается
+    // последнее по порядку прихода, а не наибольшее: сервер снимает с буфера всё, что отправил до него
+    private volatile long lastReceivedId = 0;
+    private volatile long lastAckedId = 0;
+    // Пауза, которую сервер попросил выждать перед переподключением в SERVER_SHUTDOWN; 0 — не просил
+    private volatile long serverRestartDelay = 0;
+    private volatile NetworkListener listener;
+    // Сообщения, пришедшие, пока слушателя нет (между AUTH_OK и открытием окна чата)
+    private final Queue<Message> undelivered = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock deliveryLock = new ReentrantLock();
 
     private String username;
-    private ChatController controller;
+    // Токен из AUTH_OK: по нему можно вернуться в сессию командой RESUME без пароля
+    private volatile String sessionToken;
+    // До AUTH_OK всегда JSON: так старый сервер поймёт клиента, а новый сообщит, какой формат выбран
+    private volatile MessageCodec codec = Codecs.JSON;
 
-    private final List<Message> delayedMessages = new ArrayList<>();
+    // Наибольший полученный id в каждом потоке сообщений. Внутри потока id растут по порядку,
+    // а между потоками могут приходить вперемешку, поэтому RESUME просит всё новее минимума
+    // из них: так ничего не теряется, а повторы клиент отбрасывает по id
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
 
     public Network() {
-        this.gson = new Gson();
         this.config = new ClientConfig();
         this.host = config.getServerHost();
         this.port = config.getServerPort();
+        this.outbound = new ArrayBlockingQueue<>(config.getOutboundQueueSize());
     }
 
-    public void connect() {
+    // Запускает потоки сети; подключение идёт в фоне, listener узнает о неудаче через onDisconnected
+    public void start(NetworkListener listener) {
+        this.listener = listener;
+        writer = Thread.ofPlatform().daemon().name("network-writer").start(this::writeLoop);
+        Thread.ofPlatform().daemon().name("network-reader").start(this::readLoop);
+        int interval = config.getHeartbeatInterval();
+        int ackInterval = config.getAckInterval();
+        if (interval > 0 || ackInterval > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("network-heartbeat").factory());
+        }
+        if (interval > 0) {
+            long period = Math.max(100, interval / 3);
+            heartbeat.scheduleWithFixedDelay(this::checkHeartbeat, period, period, TimeUnit.MILLISECONDS);
+        }
+        if (ackInterval > 0) {
+            heartbeat.scheduleWithFixedDelay(this::sendAck, ackInterval, ackInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void connect() {
         try {
             socket = new Socket();
             socket.connect(new InetSocketAddress(host, port), config.getConnectionTimeout());
 
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            lastReceived = System.nanoTime();
             LOGGER.info("Connected to server: {}:{}", host, port);
         } catch (IOException e) {
             LOGGER.error("Connection error", e);
@@ -57,73 +124,364 @@ public class Network {
     }
 
     public boolean isConnected() {
-        return socket != null && socket.isConnected() && !socket.isClosed();
+        Socket current = socket;
+        return current != null && current.isConnected() && !current.isClosed();
+    }
+
+    // Окно чата подписывается после входа и сразу получает накопившееся
+    public void setListener(NetworkListener listener) {
+        this.listener = listener;
+        deliverUndelivered();
     }
 
-    public void setController(ChatController controller) {
-        this.controller = controller;
-        synchronized (delayedMessages) {
-            for (Message msg : delayedMessages) {
-                Platform.runLater(() -> controller.handleMessage(msg));
+    private void readLoop() {
+        try {
+            connect();
+        } catch (ConnectionException e) {
+            if (!closing) {
+                notifyDisconnected("Не удалось подключиться к серверу");
             }
-            delayedMessages.clear();
+            close();
+            return;
         }
-    }
+        setWritable(true);
 
-    public void startReading(Runnable onAuthOk, Consumer<String> onAuthError, Consumer<String> onRegOk) {
-        new Thread(() -> {
+        boolean isAuthenticated = false;
+        while (true) {
             try {
-                boolean isAuthenticated = false;
                 while (true) {
-                    String json = in.readUTF();
-                    Message message = gson.fromJson(json, Message.class);
-
+                    Message message = codec.read(in);
+                    lastReceived = System.nanoTime();
+                    pingSent = false;
+                    if (message.getType() == CommandType.PING) {
+                        outbound.offer(new Message(CommandType.PONG, "client", message.getMessage()));
+                        continue;
+                    }
+                    if (message.getType() == CommandType.PONG) {
+                        continue;
+                    }
+                    if (message.getType() == CommandType.SERVER_SHUTDOWN) {
+                        acceptShutdownNotice(message);
+                        continue;
+                    }
                     if (!isAuthenticated) {
-                        if (message.getType() == CommandType.AUTH_OK) {
-                            this.username = message.getMessage().split("\\s+")[0];
-                            LOGGER.info("User authenticated: {}", this.username);
-                            isAuthenticated = true;
-                            onAuthOk.run();
-                        } else if (message.getType() == CommandType.ERROR) {
-                            onAuthError.accept(message.getMessage());
-                        } else if (message.getType() == CommandType.REG_OK) {
-                            onRegOk.accept(message.getMessage());
-                        }
+                        isAuthenticated = handleLoginReply(message);
                     } else {
-                        if (controller != null) {
-                            Platform.runLater(() -> controller.handleMessage(message));
-                        } else {
-                            synchronized (delayedMessages) {
-                                delayedMessages.add(message);
-                            }
-                        }
+                        track(message);
+                        deliver(message);
                     }
                 }
             } catch (IOException e) {
+                closeSocket();
+                setWritable(false);
+                if (closing) {
+                    return;
+                }
                 LOGGER.warn("Connection lost: {}", e.getMessage());
-                if (controller != null) {
-                    Platform.runLater(() -> controller.showError("Соединение с сервером потеряно."));
+                if (!isAuthenticated || sessionToken == null || !reconnect()) {
+                    if (!closing) {
+                        notifyDisconnected("Соединение с сервером потеряно.");
+                    }
+                    close();
+                    return;
                 }
-            } finally {
-                close();
+                setWritable(true);
+            }
+        }
+    }
+
+    // true, если вход состоялся. Дальше окно входа не слушает: сообщения копятся до окна чата
+    private boolean handleLoginReply(Message message) {
+        NetworkListener current = listener;
+        if (message.getType() == CommandType.AUTH_OK) {
+            acceptAuthOk(message);
+            LOGGER.info("User authenticated: {} (protocol: {})", this.username, codec.getName());
+            listener = null;
+            if (current != null) {
+                current.onAuthenticated(username);
             }
-        }).start();
+            return true;
+        }
+        if (current == null) {
+            return false;
+        }
+        if (message.getType() == CommandType.ERROR) {
+            current.onAuthFailed(message.getMessage());
+        } else if (message.getType() == CommandType.REG_OK) {
+            current.onRegistered(message.getMessage());
+        }
+        return false;
+    }
+
+    private void deliver(Message message) {
+        undelivered.add(message);
+        deliverUndelivered();
+    }
+
+    // Под замком, чтобы подписка окна чата и читающий поток не перемешали порядок сообщений
+    private void deliverUndelivered() {
+        deliveryLock.lock();
+        try {
+            NetworkListener current = listener;
+            Message message;
+            while (current != null && (message = undelivered.poll()) != null) {
+                current.onMessage(message);
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    private void acceptShutdownNotice(Message message) {
+        try {
+            serverRestartDelay = Math.max(0, Long.parseLong(message.getMessage().trim()));
+        } catch (NumberFormatException | NullPointerException e) {
+            serverRestartDelay = config.getReconnectDelay();
+        }
+        LOGGER.info("Server is shutting down, suggested reconnect delay {} ms", serverRestartDelay);
+        // Новые сообщения ждут в очереди и уйдут после возобновления сессии. Соединение закрываем
+        // сами: всё отправленное до этого сервер успеет обработать, не дожидаясь своего срока
+        setWritable(false);
+        closeSocket();
+        notifyStatus(String.format("Сервер перезапускается. Переподключение примерно через %.0f с.", serverRestartDelay / 1000.0));
     }
 
-    public void sendMessage(Message message) {
-        if (!isConnected()) {
-            LOGGER.error("Attempt to send message without connection");
+    private void acceptAuthOk(Message message) {
+        String[] parts = message.getMessage().split("\\s+");
+        this.username = parts[0];
+        this.sessionToken = parts.length > 1 ? parts[1] : null;
+        this.codec = Codecs.byName(message.getCodec());
+    }
+
+    private void track(Message message) {
+        // Из покинутой комнаты сообщений больше не будет, её отметка не должна тянуть минимум вниз
+        if (message.getType() == CommandType.LEAVE && message.getRoom() != null && message.getSender().equals(username)) {
+            lastSeen.remove(message.getRoom());
             return;
         }
+        if (message.getId() == null) {
+            return;
+        }
+        if (message.getType() == CommandType.PUBLIC_MESSAGE || message.getType() == CommandType.ROOM_MESSAGE
+                || message.getType() == CommandType.PRIVATE_MESSAGE) {
+            lastReceivedId = message.getId();
+        }
+        if (message.getType() == CommandType.PUBLIC_MESSAGE) {
+            lastSeen.merge(PUBLIC_STREAM, message.getId(), Math::max);
+        } else if (message.getType() == CommandType.ROOM_MESSAGE && message.getRoom() != null) {
+            lastSeen.merge(message.getRoom(), message.getId(), Math::max);
+        }
+    }
+
+    private long lastSeenId() {
+        return lastSeen.values().stream().mapToLong(Long::longValue).min().orElse(0L);
+    }
+
+    // Переподключение с экспоненциально растущей паузой и случайным разбросом: после рестарта
+    // сервера клиенты возвращаются вразнобой, а не все в одну миллисекунду. Сессия
+    // возобновляется по токену, и сервер присылает только пропущенные сообщения
+    private boolean reconnect() {
+        closeSocket();
+        int attempts = config.getReconnectAttempts();
+        for (int attempt = 1; attempt <= attempts && !closing; attempt++) {
+            long delay = backoff(attempt);
+            notifyStatus(String.format("Соединение потеряно. Повторное подключение через %.1f с (попытка %d из %d)...",
+                    delay / 1000.0, attempt, attempts));
+            try {
+                Thread.sleep(delay);
+                connect();
+                this.codec = Codecs.JSON;
+                writeResume(lastSeenId());
+                // Ответ на RESUME ждём не дольше idleTimeout: сервер, принявший соединение, мог зависнуть
+                socket.setSoTimeout(config.getIdleTimeout());
+                Message reply = codec.read(in);
+                socket.setSoTimeout(0);
+                if (reply.getType() == CommandType.AUTH_OK) {
+                    acceptAuthOk(reply);
+                    // Буфер нового соединения пуст: подтверждать отправленное старым незачем
+                    lastAckedId = lastReceivedId;
+                    LOGGER.info("Session resumed for {} on attempt {}", username, attempt);
+                    notifyStatus("Соединение восстановлено.");
+                    return true;
+                }
+                LOGGER.warn("Resume rejected: {}", reply.getMessage());
+                notifyStatus(reply.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException | ConnectionException e) {
+                LOGGER.warn("Reconnect attempt {} failed: {}", attempt, e.getMessage());
+                closeSocket();
+            }
+        }
+        return false;
+    }
+
+    // Случайная пауза в верхней половине окна base * 2^(attempt-1), окно ограничено сверху.
+    // Если сервер предупредил об остановке, первое окно — его рекомендованная пауза
+    private long backoff(int attempt) {
+        long window = Math.min(config.getReconnectMaxDelay(), (long) config.getReconnectDelay() << Math.min(attempt - 1, 20));
+        long restartDelay = serverRestartDelay;
+        if (attempt == 1 && restartDelay > 0) {
+            serverRestartDelay = 0;
+            window = Math.max(window, restartDelay);
+        }
+        return window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+    }
+
+    // RESUME идёт мимо очереди: писатель ждёт восстановления сессии и отправит накопленное следом
+    private void writeResume(long lastSeenId) throws IOException {
+        Message message = new Message(CommandType.RESUME, "client", sessionToken + " " + lastSeenId);
+        message.setCodec(config.getProtocol());
+        message.setAcks(config.getAckInterval() > 0);
+        byte[] frame = codec.encode(message);
+        writeLock.lock();
         try {
-            out.writeUTF(gson.toJson(message));
+            out.write(frame);
             out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+        LOGGER.info("Resume request sent for {} after message {}", username, lastSeenId);
+    }
+
+    private void setWritable(boolean value) {
+        writeLock.lock();
+        try {
+            writable = value;
+            writableChanged.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Message message;
+            while ((message = outbound.take()) != CLOSE) {
+                // Не ушедшее из-за обрыва сообщение отправляется заново после переподключения
+                while (!tryWrite(message)) {
+                    if (closing) {
+                        closeSocket();
+                        return;
+                    }
+                }
+            }
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSocket();
+    }
+
+    // false — сообщение не записано: сокет оборвался или соединение закрывается
+    private boolean tryWrite(Message message) throws InterruptedException {
+        writeLock.lock();
+        try {
+            while (!writable) {
+                if (closing) {
+                    return false;
+                }
+                writableChanged.await();
+            }
+            byte[] frame;
+            try {
+                frame = codec.encode(message);
+            } catch (IOException e) {
+                LOGGER.error("Failed to encode message", e);
+                return true;
+            }
+            // Пока в очереди есть ещё, кадры копятся в буфере и уходят одной записью
+            out.write(frame);
+            if (outbound.isEmpty()) {
+                out.flush();
+            }
+            return true;
         } catch (IOException e) {
-            LOGGER.error("Failed to send message", e);
-            close();
+            // Читающий поток заметит обрыв и начнёт переподключение
+            LOGGER.warn("Failed to send message: {}", e.getMessage());
+            writable = false;
+            closeSocket();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void flush() {
+        writeLock.lock();
+        try {
+            if (writable) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to flush outbound messages: {}", e.getMessage());
+        } finally {
+            writeLock.unlock();
         }
     }
 
+    // Сервер мог пропасть без FIN (уснувший ноутбук, сменившаяся сеть), и чтение ждало бы минутами.
+    // После тишины уходит PING; если сервер молчит дольше idleTimeout, сокет обрывается и
+    // читающий поток переподключается
+    private void checkHeartbeat() {
+        if (!writable || closing) {
+            return;
+        }
+        long idleMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceived);
+        if (config.getIdleTimeout() > 0 && idleMs >= config.getIdleTimeout()) {
+            LOGGER.warn("No data from server for {} ms, dropping connection", idleMs);
+            closeSocket();
+        } else if (idleMs >= config.getHeartbeatInterval() && !pingSent) {
+            pingSent = outbound.offer(new Message(CommandType.PING, "client", "ping"));
+        }
+    }
+
+    // Раз в client.ack.interval.ms подтверждает полученное, если с прошлого раза пришло новое.
+    // Пока идёт переподключение, ждёт: ACK относится к буферу текущего соединения
+    private void sendAck() {
+        long id = lastReceivedId;
+        if (!writable || closing || id == lastAckedId) {
+            return;
+        }
+        if (outbound.offer(new Message(CommandType.ACK, "client", Long.toString(id)))) {
+            lastAckedId = id;
+        }
+    }
+
+    private void notifyStatus(String text) {
+        NetworkListener current = listener;
+        if (current != null) {
+            current.onStatus(text);
+        }
+    }
+
+    private void notifyDisconnected(String reason) {
+        NetworkListener current = listener;
+        if (current != null) {
+            current.onDisconnected(reason);
+        }
+    }
+
+    // Не блокирует: сообщение ставится в очередь писателя. false, если очередь полна или соединение закрыто
+    public boolean sendMessage(Message message) {
+        if (closing) {
+            LOGGER.error("Attempt to send message on closed connection");
+            return false;
+        }
+        return enqueue(message);
+    }
+
+    private boolean enqueue(Message message) {
+        if (outbound.offer(message)) {
+            return true;
+        }
+        LOGGER.warn("Outbound queue is full, {} dropped", message.getType());
+        notifyStatus("Сообщение не отправлено: нет связи с сервером.");
+        return false;
+    }
+
     public void sendPublicMessage(String messageText) {
         Message message = new Message(CommandType.PUBLIC_MESSAGE, this.username, messageText);
         sendMessage(message);
@@ -131,6 +489,8 @@ public class Network {
 
     public void sendAuthMessage(String login, String password) {
         Message message = new Message(CommandType.AUTH, "client", login + " " + password);
+        message.setCodec(config.getProtocol());
+        message.setAcks(config.getAckInterval() > 0);
         sendMessage(message);
         LOGGER.info("Auth request sent for {}", login);
     }
@@ -141,16 +501,77 @@ public class Network {
         LOGGER.info("Registration request sent for {}", login);
     }
 
+    public void sendHistoryRequest(long beforeId) {
+        Message message = new Message(CommandType.HISTORY_REQUEST, this.username, beforeId + " " + config.getHistoryPageSize());
+        sendMessage(message);
+    }
+
+    public void sendJoinRoom(String room) {
+        sendRoomCommand(CommandType.JOIN, room, "join");
+    }
+
+    public void sendLeaveRoom(String room) {
+        sendRoomCommand(CommandType.LEAVE, room, "leave");
+    }
+
+    public void sendRoomMessage(String room, String messageText) {
+        sendRoomCommand(CommandType.ROOM_MESSAGE, room, messageText);
+    }
+
+    private void sendRoomCommand(CommandType type, String room, String text) {
+        Message message = new Message(type, this.username, text);
+        message.setRoom(room);
+        sendMessage(message);
+    }
+
+    public void sendPrivateMessage(String recipient, String messageText) {
+        Message message = new Message(CommandType.PRIVATE_MESSAGE, this.username, messageText);
+        message.setRecipient(recipient);
+        sendMessage(message);
+    }
+
+    public void sendListRequest() {
+        Message message = new Message(CommandType.LIST_REQUEST, this.username, "list");
+        sendMessage(message);
+    }
+
+    public void sendSearchRequest(String query, int offset) {
+        Message message = new Message(CommandType.SEARCH, this.username, offset + " " + config.getSearchPageSize() + " " + query);
+        sendMessage(message);
+    }
+
     public void sendLogoutMessage() {
+        long id = lastReceivedId;
+        if (id != lastAckedId && outbound.offer(new Message(CommandType.ACK, "client", Long.toString(id)))) {
+            lastAckedId = id;
+        }
+        closing = true;
         Message message = new Message(CommandType.LOGOUT, this.username, "logout");
-        sendMessage(message);
+        enqueue(message);
         LOGGER.info("Logout request sent for {}", this.username);
     }
 
+    // Подключённый писатель сначала дописывает очередь (в том числе LOGOUT), затем закрывает сокет сам
     public void close() {
+        closing = true;
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        Thread current = writer;
+        if (current != null && writable && outbound.offer(CLOSE)) {
+            return;
+        }
+        closeSocket();
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (current != null && !current.isClosed()) {
+                current.close();
                 LOGGER.info("Connection closed for user: {}", username);
             }
         } catch (IOException e) {
@@ -158,6 +579,14 @@ public class Network {
         }
     }
 
+    public ClientConfig getConfig() {
+        return config;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
     public String getUsername() {
         return username;
     }
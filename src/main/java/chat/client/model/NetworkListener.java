@@ -0,0 +1,28 @@
+package chat.client.model;
+
+import chat.common.Message;
+
+// События сетевого слоя. Приходят из потоков сети (onStatus — ещё и из потока, вызвавшего отправку),
+// поэтому реализация не должна блокировать и сама передаёт работу в поток JavaFX
+public interface NetworkListener {
+    default void onAuthenticated(String username) {
+    }
+
+    default void onAuthFailed(String reason) {
+    }
+
+    default void onRegistered(String text) {
+    }
+
+    // Сообщения после входа; пока слушателя нет, они копятся и не теряются
+    default void onMessage(Message message) {
+    }
+
+    // Строка для пользователя: обрыв, ход переподключения, переполненная очередь отправки
+    default void onStatus(String text) {
+    }
+
+    // Связи нет и больше не будет: подключиться не удалось или переподключение исчерпано
+    default void onDisconnected(String reason) {
+    }
+}
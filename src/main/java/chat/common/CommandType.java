@@ -7,8 +7,23 @@ public enum CommandType {
     REG_OK,         // Успешная регистрация
     ERROR,          // Ошибка
     PUBLIC_MESSAGE, // Сообщение в чат
-    LIST_REQUEST,   // Запрос списка пользователей
+    LIST_REQUEST,   // Запрос полного списка пользователей (ответ — CLIENT_MESSAGE с версией в id)
     CLIENT_MESSAGE,  // Служебное
     LOGOUT, // Команды выхода
-    USER_LOGOUT // Уведомление о выходе пользователя
+    USER_LOGOUT, // Уведомление о выходе пользователя; в id — версия состава участников
+    HISTORY_REQUEST, // Запрос истории до сообщения: "<id> <размер страницы>"
+    HISTORY_PAGE,    // Часть страницы истории (HistoryPage в JSON)
+    SEARCH,          // Поиск по истории: "<смещение> <размер страницы> <запрос>"
+    SEARCH_RESULT,   // Страница результатов поиска (SearchPage в JSON)
+    USER_JOINED,     // Пользователь вошёл; в id — версия состава участников
+    PRESENCE_UPDATE, // Несколько входов и выходов за окно (PresenceUpdate в JSON); в id — версия
+    JOIN,            // Вход в комнату room; сервер рассылает его участникам комнаты
+    LEAVE,           // Выход из комнаты room
+    ROOM_MESSAGE,    // Сообщение в комнату room
+    PRIVATE_MESSAGE, // Личное сообщение пользователю recipient; отправителю приходит копия
+    RESUME,          // Возобновление сессии без пароля: "<токен из AUTH_OK> <id последнего полученного сообщения>"
+    PING,            // Проверка связи после тишины; посылают обе стороны, в любой фазе
+    PONG,            // Ответ на PING с тем же текстом
+    SERVER_SHUTDOWN, // Сервер останавливается: "<рекомендуемая пауза перед переподключением, мс>"
+    ACK              // Клиент получил всё, что сервер отправил до сообщения "<id>" включительно
 }
\ No newline at end of file
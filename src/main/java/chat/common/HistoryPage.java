@@ -0,0 +1,23 @@
+package chat.common;
+
+import java.util.List;
+
+// Страница истории может прийти несколькими кадрами HISTORY_PAGE; last отмечает последний из них
+public class HistoryPage {
+    private List<Message> messages;
+    private boolean last;
+    private boolean hasMore;
+
+    public HistoryPage() {
+    }
+
+    public HistoryPage(List<Message> messages, boolean last, boolean hasMore) {
+        this.messages = messages;
+        this.last = last;
+        this.hasMore = hasMore;
+    }
+
+    public List<Message> getMessages() { return messages; }
+    public boolean isLast() { return last; }
+    public boolean isHasMore() { return hasMore; }
+}
@@ -7,15 +7,25 @@ public class Message {
     private String sender;
     private String message;
     private String timestamp;
+    private String codec; // Только в AUTH/AUTH_OK: согласование формата кадров
+    private Boolean acks; // Только в AUTH/RESUME: клиент подтверждает доставку через ACK
+    private Long id;      // messages.id для сохранённых сообщений чата
+    private String room;  // Комната для JOIN/LEAVE/ROOM_MESSAGE, null — общий чат
+    private String recipient; // Получатель PRIVATE_MESSAGE
+    private Long time;    // Когда сервер принял сообщение, мс от эпохи; у сообщений с id
 
     public Message() {
     }
 
     public Message(CommandType type, String sender, String message) {
+        this(type, sender, message, LocalDateTime.now().toString());
+    }
+
+    public Message(CommandType type, String sender, String message, String timestamp) {
         this.type = type;
         this.sender = sender;
         this.message = message;
-        this.timestamp = LocalDateTime.now().toString();
+        this.timestamp = timestamp;
     }
 
     public CommandType getType() { return type; }
@@ -26,4 +36,25 @@ public class Message {
 
     public String getMessage() { return message; }
     public void setMessage(String message) { this.message = message; }
+
+    public String getTimestamp() { return timestamp; }
+    public void setTimestamp(String timestamp) { this.timestamp = timestamp; }
+
+    public String getCodec() { return codec; }
+    public void setCodec(String codec) { this.codec = codec; }
+
+    public Boolean getAcks() { return acks; }
+    public void setAcks(Boolean acks) { this.acks = acks; }
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getRoom() { return room; }
+    public void setRoom(String room) { this.room = room; }
+
+    public String getRecipient() { return recipient; }
+    public void setRecipient(String recipient) { this.recipient = recipient; }
+
+    public Long getTime() { return time; }
+    public void setTime(Long time) { this.time = time; }
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package chat.common;
+
+import java.util.List;
+
+// Изменения состава участников за одно окно: приходит в PRESENCE_UPDATE, версия — в id сообщения
+public class PresenceUpdate {
+    private List<String> joined;
+    private List<String> left;
+
+    public PresenceUpdate() {
+    }
+
+    public PresenceUpdate(List<String> joined, List<String> left) {
+        this.joined = joined;
+        this.left = left;
+    }
+
+    public List<String> getJoined() { return joined; }
+    public List<String> getLeft() { return left; }
+}
@@ -0,0 +1,26 @@
+package chat.common;
+
+import java.util.List;
+
+// Результаты поиска по порядку релевантности; в message каждого сообщения — фрагмент с подсветкой
+public class SearchPage {
+    private String query;
+    private int offset;
+    private List<Message> results;
+    private boolean hasMore;
+
+    public SearchPage() {
+    }
+
+    public SearchPage(String query, int offset, List<Message> results, boolean hasMore) {
+        this.query = query;
+        this.offset = offset;
+        this.results = results;
+        this.hasMore = hasMore;
+    }
+
+    public String getQuery() { return query; }
+    public int getOffset() { return offset; }
+    public List<Message> getResults() { return results; }
+    public boolean isHasMore() { return hasMore; }
+}
@@ -0,0 +1,185 @@
+package chat.common.codec;
+
+import chat.common.CommandType;
+import chat.common.Message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Компактный формат кадра:
+//   int32 длина тела | u8 (ordinal CommandType + 1, 0 = null) | sender | message | timestamp | id | room | recipient | time
+// Строка: varint (длина в байтах + 1, 0 = null), затем байты UTF-8. Число: varint (значение + 1, 0 = null).
+// Незнакомые поля в конце тела пропускаются, поэтому формат можно расширять.
+public class BinaryCodec implements MessageCodec {
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final CommandType[] TYPES = CommandType.values();
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        byte[] sender = utf8(message.getSender());
+        byte[] text = utf8(message.getMessage());
+        byte[] timestamp = utf8(message.getTimestamp());
+        byte[] room = utf8(message.getRoom());
+        byte[] recipient = utf8(message.getRecipient());
+
+        int bodyLength = 1 + sizeOf(sender) + sizeOf(text) + sizeOf(timestamp) + sizeOf(message.getId()) + sizeOf(room) + sizeOf(recipient) + sizeOf(message.getTime());
+        if (bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("Frame too large: " + bodyLength + " bytes");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + bodyLength);
+        frame.putInt(bodyLength);
+        frame.put((byte) (message.getType() == null ? 0 : message.getType().ordinal() + 1));
+        putString(frame, sender);
+        putString(frame, text);
+        putString(frame, timestamp);
+        putLong(frame, message.getId());
+        putString(frame, room);
+        putString(frame, recipient);
+        putLong(frame, message.getTime());
+        return frame.array();
+    }
+
+    @Override
+    public Message read(DataInputStream in) throws IOException {
+        int bodyLength = checkLength(in.readInt());
+        byte[] body = new byte[bodyLength];
+        in.readFully(body);
+        return parseBody(ByteBuffer.wrap(body), bodyLength);
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int bodyLength = checkLength(buffer.getInt(buffer.position()));
+        if (buffer.remaining() < 4 + bodyLength) {
+            return null;
+        }
+        buffer.position(buffer.position() + 4);
+        return parseBody(buffer, bodyLength);
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return 4 + MAX_BODY_SIZE;
+    }
+
+    private Message parseBody(ByteBuffer buffer, int bodyLength) throws IOException {
+        int end = buffer.position() + bodyLength;
+        try {
+            Message message = new Message();
+            int type = buffer.get() & 0xFF;
+            if (type > TYPES.length) {
+                throw new IOException("Unknown command type: " + type);
+            }
+            message.setType(type == 0 ? null : TYPES[type - 1]);
+            message.setSender(getString(buffer, end));
+            message.setMessage(getString(buffer, end));
+            message.setTimestamp(getString(buffer, end));
+            message.setId(getLong(buffer, end));
+            message.setRoom(getString(buffer, end));
+            message.setRecipient(getString(buffer, end));
+            message.setTime(getLong(buffer, end));
+            return message;
+        } finally {
+            buffer.position(end);
+        }
+    }
+
+    private static int checkLength(int bodyLength) throws IOException {
+        if (bodyLength < 1 || bodyLength > MAX_BODY_SIZE) {
+            throw new IOException("Invalid frame length: " + bodyLength);
+        }
+        return bodyLength;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] value) {
+        return value == null ? 1 : varintSize(value.length + 1) + value.length;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        putVarint(buffer, value.length + 1);
+        buffer.put(value);
+    }
+
+    private static String getString(ByteBuffer buffer, int end) throws IOException {
+        if (buffer.position() >= end) {
+            return null;
+        }
+        long length = getVarint(buffer, end) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > end - buffer.position()) {
+            throw new IOException("String length exceeds frame");
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+
+    private static int sizeOf(Long value) {
+        return value == null ? 1 : varintSize(value + 1);
+    }
+
+    private static void putLong(ByteBuffer buffer, Long value) {
+        putVarint(buffer, value == null ? 0 : value + 1);
+    }
+
+    private static Long getLong(ByteBuffer buffer, int end) throws IOException {
+        if (buffer.position() >= end) {
+            return null;
+        }
+        long value = getVarint(buffer, end);
+        return value == 0 ? null : value - 1;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer buffer, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (buffer.position() >= end) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,17 @@
+package chat.common.codec;
+
+public final class Codecs {
+    public static final MessageCodec JSON = new JsonCodec();
+    public static final MessageCodec BINARY = new BinaryCodec();
+
+    private Codecs() {
+    }
+
+    // Неизвестное имя (или его отсутствие у старых клиентов) означает JSON
+    public static MessageCodec byName(String name) {
+        if (BINARY.getName().equals(name)) {
+            return BINARY;
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,64 @@
+package chat.common.codec;
+
+import chat.common.Message;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Исходный формат: Gson-JSON внутри writeUTF (2 байта длины + modified UTF-8)
+public class JsonCodec implements MessageCodec {
+    private static final int MAX_FRAME_SIZE = 2 + 0xFFFF;
+
+    private final Gson gson = new Gson();
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        String json = gson.toJson(message);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length() + 2);
+        new DataOutputStream(buffer).writeUTF(json);
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public Message read(DataInputStream in) throws IOException {
+        return parse(in.readUTF());
+    }
+
+    @Override
+    public Message decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int frameLength = 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+        if (buffer.remaining() < frameLength) {
+            return null;
+        }
+        byte[] frame = new byte[frameLength];
+        buffer.get(frame);
+        return parse(new DataInputStream(new ByteArrayInputStream(frame)).readUTF());
+    }
+
+    private Message parse(String json) throws IOException {
+        try {
+            return gson.fromJson(json, Message.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed JSON frame", e);
+        }
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return MAX_FRAME_SIZE;
+    }
+}
@@ -0,0 +1,23 @@
+package chat.common.codec;
+
+import chat.common.Message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface MessageCodec {
+    String getName();
+
+    // Полный кадр вместе с префиксом длины
+    byte[] encode(Message message) throws IOException;
+
+    // Блокирующее чтение одного кадра из потока
+    Message read(DataInputStream in) throws IOException;
+
+    // Буфер в режиме чтения. Если кадр пришёл целиком, он извлекается из буфера,
+    // иначе возвращается null и позиция буфера не меняется.
+    Message decode(ByteBuffer buffer) throws IOException;
+
+    int getMaxFrameSize();
+}
@@ -2,131 +2,326 @@ package chat.server;
 
 import chat.common.CommandType;
 import chat.common.Message;
+import chat.server.db.SqliteConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.sql.*;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class AuthService {
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthService.class);
-    private static final String DB_URL = "jdbc:sqlite:chat.db";
-    private static final String SALT = "MySuperSecretSalt_#&@!2024";
+    private static final int DEFAULT_AUTH_QUEUE_SIZE = 10_000;
 
-    public AuthService() {
+    // room IS NULL — общий чат; оба варианта идут по индексу (room, id)
+    // Строки, записанные до появления столбца time, получают время из timestamp (UTC, с точностью до секунды)
+    private static final String SQL_TIME = "COALESCE(time, CAST(strftime('%s', timestamp) AS INTEGER) * 1000) AS time";
+    private static final String SQL_MESSAGES_BEFORE = "SELECT * FROM (SELECT id, room, sender, message, timestamp, " + SQL_TIME + " FROM messages WHERE room IS NULL AND id < ? ORDER BY id DESC LIMIT ?) ORDER BY id ASC";
+    private static final String SQL_ROOM_MESSAGES_BEFORE = "SELECT * FROM (SELECT id, room, sender, message, timestamp, " + SQL_TIME + " FROM messages WHERE room = ? AND id < ? ORDER BY id DESC LIMIT ?) ORDER BY id ASC";
+    private static final String SQL_MESSAGES_AFTER = "SELECT * FROM (SELECT id, room, sender, message, timestamp, " + SQL_TIME + " FROM messages WHERE room IS NULL AND id > ? ORDER BY id DESC LIMIT ?) ORDER BY id ASC";
+    private static final String SQL_ROOM_MESSAGES_AFTER = "SELECT * FROM (SELECT id, room, sender, message, timestamp, " + SQL_TIME + " FROM messages WHERE room = ? AND id > ? ORDER BY id DESC LIMIT ?) ORDER BY id ASC";
+    private static final String SQL_INSERT_USER = "INSERT INTO users(login, password) VALUES(?, ?)";
+    private static final String SQL_USER_PASSWORD = "SELECT password FROM users WHERE login = ?";
+    private static final String SQL_IMPORT_USER = "INSERT OR IGNORE INTO users(login, password) VALUES(?, ?)";
+    // Условие на старый хеш: параллельный вход с тем же паролем не перезапишет уже обновлённую запись
+    private static final String SQL_UPDATE_PASSWORD = "UPDATE users SET password = ? WHERE login = ? AND password = ?";
+
+    public enum Result { OK, FAILED, BUSY }
+
+    // sqlite-jdbc уходит в JNI и синхронизируется внутри драйвера, поэтому виртуальный поток
+    // закрепился бы за носителем на всё время запроса. Такие вызовы выполняются на отдельных
+    // платформенных потоках, а виртуальный поток просто паркуется в ожидании результата.
+    private final ExecutorService dbExecutor;
+    // Хеширование пароля занимает десятки миллисекунд процессора. Вход и регистрация целиком
+    // выполняются на этом пуле: потоков в нём меньше, чем ядер, поэтому волна переподключений
+    // не отнимает процессор у рассылки, а переполненная очередь сразу отвечает BUSY
+    private final ThreadPoolExecutor authExecutor;
+    private final SqliteConnectionManager db;
+    private final PasswordHasher hasher;
+    // Для несуществующего логина хеш всё равно считается, чтобы время ответа не выдавало, есть ли такой пользователь
+    private final String dummyHash;
+
+    public AuthService(SqliteConnectionManager db, int dbThreads) {
+        this(db, dbThreads, new PasswordHasher(PasswordHasher.DEFAULT_ITERATIONS), 1, DEFAULT_AUTH_QUEUE_SIZE);
+    }
+
+    public AuthService(SqliteConnectionManager db, int dbThreads, PasswordHasher hasher, int authThreads, int authQueueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        this.dbExecutor = Executors.newFixedThreadPool(dbThreads, task -> {
+            Thread thread = new Thread(task, "db-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger authCounter = new AtomicInteger();
+        this.authExecutor = new ThreadPoolExecutor(authThreads, authThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(authQueueSize), task -> {
+            Thread thread = new Thread(task, "auth-" + authCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.db = db;
+        this.hasher = hasher;
+        this.dummyHash = hasher.hash("dummy-password");
         try {
-            try (Connection connection = DriverManager.getConnection(DB_URL);
-                 Statement statement = connection.createStatement()) {
-                
-                String sqlUsers = "CREATE TABLE IF NOT EXISTS users (" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                        "login TEXT UNIQUE NOT NULL," +
-                        "password TEXT NOT NULL" +
-                        ")";
-                statement.execute(sqlUsers);
-
-                String sqlMessages = "CREATE TABLE IF NOT EXISTS messages (" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                        "sender TEXT NOT NULL," +
-                        "message TEXT NOT NULL," +
-                        "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
-                        ")";
-                statement.execute(sqlMessages);
-                
-                LOGGER.info("Database connected & tables checked.");
-            }
-        } catch (Exception e) {
+            db.write(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    String sqlUsers = "CREATE TABLE IF NOT EXISTS users (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "login TEXT UNIQUE NOT NULL," +
+                            "password TEXT NOT NULL" +
+                            ")";
+                    statement.execute(sqlUsers);
+
+                    String sqlMessages = "CREATE TABLE IF NOT EXISTS messages (" +
+                            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "sender TEXT NOT NULL," +
+                            "message TEXT NOT NULL," +
+                            "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                            ")";
+                    statement.execute(sqlMessages);
+
+                    // Старые базы создавались без комнат: все их сообщения остаются в общем чате
+                    boolean hasRoom = false;
+                    boolean hasTime = false;
+                    try (ResultSet rs = statement.executeQuery("PRAGMA table_info(messages)")) {
+                        while (rs.next()) {
+                            hasRoom |= "room".equals(rs.getString("name"));
+                            hasTime |= "time".equals(rs.getString("name"));
+                        }
+                    }
+                    if (!hasRoom) {
+                        statement.execute("ALTER TABLE messages ADD COLUMN room TEXT");
+                    }
+                    if (!hasTime) {
+                        statement.execute("ALTER TABLE messages ADD COLUMN time INTEGER");
+                    }
+                    statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_room_id ON messages(room, id)");
+                }
+                return null;
+            });
+            LOGGER.info("Database connected & tables checked.");
+        } catch (SQLException e) {
             LOGGER.error("Database connection error", e);
+            throw new IllegalStateException("Failed to prepare database schema", e);
         }
     }
 
-    public void saveMessage(String sender, String message) {
-        String sql = "INSERT INTO messages(sender, message) VALUES(?, ?)";
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            
-            pstmt.setString(1, sender);
-            pstmt.setString(2, message);
-            pstmt.executeUpdate();
-            
+    public List<Message> getLastMessages(String room, int limit) {
+        return getMessagesBefore(room, Long.MAX_VALUE, limit);
+    }
+
+    // Для потоков, которые нельзя занимать чтением (шарды комнат): результат приходит в потоке пула базы
+    public CompletableFuture<List<Message>> getLastMessagesAsync(String room, int limit) {
+        try {
+            return CompletableFuture.supplyAsync(() -> doGetMessages(room == null ? SQL_MESSAGES_BEFORE : SQL_ROOM_MESSAGES_BEFORE, room, Long.MAX_VALUE, limit), dbExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Постраничная выборка по ключу: стоимость не зависит от того, насколько глубоко листает клиент
+    public List<Message> getMessagesBefore(String room, long beforeId, int limit) {
+        return callDb(() -> doGetMessages(room == null ? SQL_MESSAGES_BEFORE : SQL_ROOM_MESSAGES_BEFORE, room, beforeId, limit));
+    }
+
+    // До limit самых новых сообщений после afterId: догрузка пропущенного при возобновлении сессии
+    public List<Message> getMessagesAfter(String room, long afterId, int limit) {
+        return callDb(() -> doGetMessages(room == null ? SQL_MESSAGES_AFTER : SQL_ROOM_MESSAGES_AFTER, room, afterId, limit));
+    }
+
+    public Result register(String login, String password) {
+        return callAuth(() -> doRegister(login, password));
+    }
+
+    public Result authenticate(String login, String password) {
+        return callAuth(() -> doAuthenticate(login, password));
+    }
+
+    // Для NIO: поток обработки общий и ждать хеш не может, результат приходит в потоке пула входа
+    public CompletableFuture<Result> registerAsync(String login, String password) {
+        return submitAuth(() -> doRegister(login, password));
+    }
+
+    public CompletableFuture<Result> authenticateAsync(String login, String password) {
+        return submitAuth(() -> doAuthenticate(login, password));
+    }
+
+    // Хеш пароля, чтобы передать учётную запись другим узлам кластера; null, если логина нет
+    public String getPasswordHash(String login) {
+        return callDb(() -> db.read(connection -> {
+            PreparedStatement pstmt = connection.prepare(SQL_USER_PASSWORD);
+            pstmt.setString(1, login);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("password") : null;
+            }
+        }));
+    }
+
+    // Учётная запись, зарегистрированная на другом узле кластера. Уже существующий логин не меняется
+    public void importUser(String login, String passwordHash) {
+        try {
+            int inserted = db.write(connection -> {
+                PreparedStatement pstmt = connection.prepare(SQL_IMPORT_USER);
+                pstmt.setString(1, login);
+                pstmt.setString(2, passwordHash);
+                return pstmt.executeUpdate();
+            });
+            if (inserted > 0) {
+                LOGGER.info("User {} imported from cluster", login);
+            } else {
+                LOGGER.warn("Cluster copy of user {} ignored: the login already exists on this node", login);
+            }
         } catch (SQLException e) {
-            LOGGER.error("Failed to save message history", e);
+            LOGGER.warn("Failed to import user '{}': {}", login, e.getMessage());
+        }
+    }
+
+    public void close() {
+        authExecutor.shutdown();
+        dbExecutor.shutdown();
+    }
+
+    private CompletableFuture<Result> submitAuth(Supplier<Result> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, authExecutor);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Auth queue is full ({} pending), request rejected", authExecutor.getQueue().size());
+            return CompletableFuture.completedFuture(Result.BUSY);
+        }
+    }
+
+    // В отличие от callDb, сюда уходят и платформенные потоки: пул ограничивает, сколько хешей
+    // считается одновременно. Ждать здесь можно только потоку своего соединения (режимы threads
+    // и virtual); общие потоки NIO берут *Async-варианты
+    private Result callAuth(Supplier<Result> task) {
+        try {
+            return submitAuth(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for authentication", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Authentication task failed", e.getCause());
         }
     }
 
-    public List<Message> getLastMessages(int limit) {
+    // Доступно серверу для других запросов к базе, которым тоже нельзя закреплять виртуальный поток
+    <T> T callDb(Callable<T> task) {
+        try {
+            if (!Thread.currentThread().isVirtual()) {
+                return task.call();
+            }
+            return dbExecutor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for database", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Database task failed", e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Database task failed", e);
+        }
+    }
+
+    private List<Message> doGetMessages(String sql, String room, long boundaryId, int limit) {
         List<Message> history = new ArrayList<>();
-        String sql = "SELECT * FROM (SELECT id, sender, message FROM messages ORDER BY id DESC LIMIT ?) ORDER BY id ASC";
-        
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            
-            pstmt.setInt(1, limit);
-            ResultSet rs = pstmt.executeQuery();
-            
+        try {
+            db.read(connection -> {
+                PreparedStatement pstmt = connection.prepare(sql);
+                if (room != null) {
+                    pstmt.setString(1, room);
+                }
+                int index = room == null ? 1 : 2;
+                pstmt.setLong(index, boundaryId);
+                pstmt.setInt(index + 1, limit);
+                readMessages(pstmt, history);
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to load message history page", e);
+        }
+        return history;
+    }
+
+    private static void readMessages(PreparedStatement pstmt, List<Message> target) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
             while (rs.next()) {
                 String sender = rs.getString("sender");
                 String text = rs.getString("message");
-                history.add(new Message(CommandType.PUBLIC_MESSAGE, sender, text));
+                String timestamp = rs.getString("timestamp");
+                String room = rs.getString("room");
+                Message message = new Message(room == null ? CommandType.PUBLIC_MESSAGE : CommandType.ROOM_MESSAGE, sender, text, timestamp);
+                message.setId(rs.getLong("id"));
+                message.setTime(rs.getLong("time"));
+                message.setRoom(room);
+                target.add(message);
             }
-        } catch (SQLException e) {
-            LOGGER.error("Failed to load message history", e);
         }
-        return history;
     }
 
-
-    public boolean register(String login, String password) {
-        String sql = "INSERT INTO users(login, password) VALUES(?, ?)";
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            String passwordHash = hashPassword(password);
-            pstmt.setString(1, login);
-            pstmt.setString(2, passwordHash); 
-            pstmt.executeUpdate();
+    private Result doRegister(String login, String password) {
+        String passwordHash = hasher.hash(password);
+        try {
+            db.write(connection -> {
+                PreparedStatement pstmt = connection.prepare(SQL_INSERT_USER);
+                pstmt.setString(1, login);
+                pstmt.setString(2, passwordHash);
+                return pstmt.executeUpdate();
+            });
             LOGGER.info("New user registered: {}", login);
-            return true;
+            return Result.OK;
         } catch (SQLException e) {
             LOGGER.warn("Registration failed for '{}'", login);
-            return false;
+            return Result.FAILED;
         }
     }
 
-    public boolean authenticate(String login, String password) {
-        String sql = "SELECT password FROM users WHERE login = ?";
-        try (Connection connection = DriverManager.getConnection(DB_URL);
-             PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, login);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                String storedHash = rs.getString("password");
-                String inputHash = hashPassword(password);
-                return storedHash.equals(inputHash);
+    private Result doAuthenticate(String login, String password) {
+        try {
+            String storedHash = db.read(connection -> {
+                PreparedStatement pstmt = connection.prepare(SQL_USER_PASSWORD);
+                pstmt.setString(1, login);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? rs.getString("password") : null;
+                }
+            });
+            if (storedHash == null) {
+                hasher.verify(password, dummyHash);
+                return Result.FAILED;
+            }
+            if (!hasher.verify(password, storedHash)) {
+                return Result.FAILED;
             }
+            if (hasher.needsRehash(storedHash)) {
+                String upgraded = hasher.hash(password);
+                db.write(connection -> {
+                    PreparedStatement pstmt = connection.prepare(SQL_UPDATE_PASSWORD);
+                    pstmt.setString(1, upgraded);
+                    pstmt.setString(2, login);
+                    pstmt.setString(3, storedHash);
+                    return pstmt.executeUpdate();
+                });
+                LOGGER.debug("Password hash upgraded for {}", login);
+            }
+            return Result.OK;
         } catch (SQLException e) {
             LOGGER.error("Authentication error", e);
         }
-        return false;
-    }
-
-    private String hashPassword(String password) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            String textToHash = password + SALT;
-            byte[] encodedhash = digest.digest(textToHash.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : encodedhash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        return Result.FAILED;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,21 @@
+package chat.server;
+
+public interface ClientConnection {
+    // Отправка уже закодированного кадра (2 байта длины + modified UTF-8, как у writeUTF)
+    void send(byte[] frame);
+
+    void close();
+
+    // Закрытие сразу, без дописывания очереди: собеседник уже не читает
+    void abort();
+
+    boolean isOpen();
+
+    String getRemoteAddress();
+
+    // Задача в очереди обработки соединения, после уже разобранных кадров. Блокирующему
+    // соединению очередь не нужна: обработчик ждёт результат в собственном потоке
+    default void execute(Runnable task) {
+        task.run();
+    }
+}
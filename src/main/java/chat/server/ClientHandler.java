@@ -3,155 +3,576 @@ package chat.server;
 import chat.common.CommandType;
 import chat.common.Message;
 import chat.common.validation.RegistrationValidator;
-import com.google.gson.Gson;
+import chat.common.codec.Codecs;
+import chat.common.codec.MessageCodec;
+import chat.server.ratelimit.RateLimiter;
+import chat.server.ratelimit.TokenBucket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class ClientHandler implements Runnable {
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientHandler.class);
-    private static final long MESSAGE_DELAY_MS = 800;
+    private static final int DEFAULT_HISTORY_PAGE = 50;
+    private static final int MAX_ROOMS_PER_CLIENT = 50;
 
     private final ServerApp server;
-    private final Socket socket;
+    private final ClientConnection connection;
     private final DataInputStream in;
-    private final DataOutputStream out;
-    private final Gson gson;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
 
-    private String username;
-    private long lastMessageTime = 0;
-    private boolean running = true;
+    private volatile String username;
+    private volatile MessageCodec codec = Codecs.JSON;
+    // Токен возобновления текущей сессии; null до входа и после LOGOUT
+    private volatile String sessionToken;
+    private volatile boolean running = true;
+    // NIO: запрос входа или регистрации ушёл в пул, следующие кадры ждут ответа
+    private volatile boolean awaitingAuth = false;
+    // Время последнего входящего кадра (System.nanoTime); по нему IdleReaper находит молчащих
+    private volatile long lastActivity = System.nanoTime();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // Под sendLock. Создаётся при входе, если клиент объявил ACK в AUTH/RESUME, — до AUTH_OK, чтобы
+    // ни одно личное сообщение не ушло мимо буфера. Старые клиенты доставку не подтверждают, и
+    // копить для них неподтверждённое незачем; не объявившему ACK клиенту буфер заводит его первый ACK
+    private RetransmitBuffer unacked;
 
     public ClientHandler(ServerApp server, Socket socket) throws IOException {
         this.server = server;
-        this.socket = socket;
-        this.in = new DataInputStream(socket.getInputStream());
-        this.out = new DataOutputStream(socket.getOutputStream());
-        this.gson = new Gson();
+        this.connection = new SocketConnection(socket, server.newOutboundQueue(), server.getWriterThreadFactory());
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    // Для неблокирующего режима: кадры приходят извне через handle(). В обоих случаях создавший
+    // обработчик сообщает о нём серверу через ServerApp.connected, когда тот уже собран
+    public ClientHandler(ServerApp server, ClientConnection connection) {
+        this.server = server;
+        this.connection = connection;
+        this.in = null;
     }
 
     @Override
     public void run() {
         try {
-            if (authenticate()) {
-                readMessages();
+            while (running) {
+                handle(codec.read(in));
             }
         } catch (IOException e) {
-            LOGGER.warn("Client {} disconnected", socket.getInetAddress());
+            LOGGER.warn("Client {} disconnected", connection.getRemoteAddress());
         } finally {
             closeConnection();
         }
     }
 
-    private boolean authenticate() throws IOException {
-        while (true) {
-            String json = in.readUTF();
-            Message message = gson.fromJson(json, Message.class);
+    public void handle(Message message) {
+        if (message == null || !running) {
+            return;
+        }
+        lastActivity = System.nanoTime();
+        if (message.getType() == CommandType.PING) {
+            sendMessage(CommandType.PONG, "Server", message.getMessage());
+            return;
+        }
+        if (message.getType() == CommandType.PONG) {
+            return;
+        }
+        if (username == null) {
+            handleAuthPhase(message);
+        } else {
+            handleChatPhase(message);
+        }
+    }
+
+    private void handleAuthPhase(Message message) {
+        RateLimiter limiter = server.getRateLimiter();
+        if (message.getType() == CommandType.AUTH) {
+            if (!allow(RateLimiter.Kind.AUTH, limiter.addressBucket(RateLimiter.Kind.AUTH, connection.getRemoteAddress()))) {
+                return;
+            }
+            String[] parts = message.getMessage().split("\\s+", 2);
 
-            if (message.getType() == CommandType.AUTH) {
-                String[] parts = message.getMessage().split("\\s+", 2);
+            if (parts.length == 2) {
+                String login = parts[0];
+                String password = parts[1];
+                if (!allow(RateLimiter.Kind.AUTH, limiter.loginBucket(login))) {
+                    return;
+                }
+
+                if (in != null) {
+                    finishAuthentication(message, login, server.getAuthService().authenticate(login, password));
+                } else {
+                    awaitAuth(server.getAuthService().authenticateAsync(login, password), result -> finishAuthentication(message, login, result));
+                }
+                return;
+            }
+            sendMessage(CommandType.ERROR, "Server", "Неверный логин или пароль.");
+        }
+        // Возобновление не трогает базу и не считает хеш, поэтому его предел по IP мягче, чем у входа:
+        // волна переподключений после рестарта сервера проходит, а перебор токенов — нет
+        else if (message.getType() == CommandType.RESUME) {
+            if (!allow(RateLimiter.Kind.RESUME, limiter.addressBucket(RateLimiter.Kind.RESUME, connection.getRemoteAddress()))) {
+                return;
+            }
+            String[] parts = message.getMessage() == null ? new String[0] : message.getMessage().trim().split("\\s+");
+            long lastSeenId;
+            try {
+                lastSeenId = parts.length > 1 ? Long.parseLong(parts[1]) : 0;
+            } catch (NumberFormatException e) {
+                sendMessage(CommandType.ERROR, "Server", "Некорректный запрос возобновления сессии.");
+                return;
+            }
+            String token = parts.length > 0 ? parts[0] : null;
+            SessionStore.Session session = server.getSessions().resume(token);
+            if (session == null) {
+                sendMessage(CommandType.ERROR, "Server", "Сессия истекла. Войдите заново.");
+                return;
+            }
+            trackDeliveries(message);
+            if (!server.claimUsernameForResume(session.getUsername(), this)) {
+                server.getSessions().restore(token, session);
+                sendMessage(CommandType.ERROR, "Server", "Пользователь уже в сети.");
+                return;
+            }
+            LOGGER.info("User {} resumed session after message {}", session.getUsername(), lastSeenId);
+            completeLogin(message, session.getUsername(), Math.max(0, lastSeenId), session.getRooms());
+        }
+        else if (message.getType() == CommandType.REGISTER) {
+            if (!allow(RateLimiter.Kind.REGISTER, limiter.addressBucket(RateLimiter.Kind.REGISTER, connection.getRemoteAddress()))) {
+                return;
+            }
+            String[] parts = message.getMessage().split("\\s+", 2);
 
-                if (parts.length == 2) {
-                    String login = parts[0];
-                    String password = parts[1];
+            if (parts.length == 2) {
+                String login = parts[0];
+                String password = parts[1];
 
-                    if (server.getAuthService().authenticate(login, password)) {
-                        if (server.isUserOnline(login)) {
-                            sendMessage(CommandType.ERROR, "Server", "Пользователь уже в сети.");
-                            LOGGER.warn("User {} tried to login, but already online.", login);
-                            continue;
-                        }
-                        this.username = login;
-                        sendMessage(CommandType.AUTH_OK, "Server", login);
-                        server.subscribe(this);
-                        return true;
-                    }
+                String validationError = RegistrationValidator.validateRegistration(login, password);
+                if (validationError != null) {
+                    sendMessage(CommandType.ERROR, "Server", validationError);
+                    return;
                 }
-                sendMessage(CommandType.ERROR, "Server", "Неверный логин или пароль.");
-            }
-            else if (message.getType() == CommandType.REGISTER) {
-                String[] parts = message.getMessage().split("\\s+", 2);
-
-                if (parts.length == 2) {
-                    String login = parts[0];
-                    String password = parts[1];
-
-                    String validationError = RegistrationValidator.validateRegistration(login, password);
-                    if (validationError != null) {
-                        sendMessage(CommandType.ERROR, "Server", validationError);
-                        continue;
-                    }
-
-                    if (server.getAuthService().register(login, password)) {
-                        sendMessage(CommandType.REG_OK, "Server", "Регистрация успешна! Пожалуйста, войдите в чат.");
-                    } else {
-                        sendMessage(CommandType.ERROR, "Server", "Логин '" + login + "' уже занят.");
-                    }
+
+                if (in != null) {
+                    finishRegistration(login, server.getAuthService().register(login, password));
                 } else {
-                    sendMessage(CommandType.ERROR, "Server", "Ошибка регистрации.");
+                    awaitAuth(server.getAuthService().registerAsync(login, password), result -> finishRegistration(login, result));
                 }
+            } else {
+                sendMessage(CommandType.ERROR, "Server", "Ошибка регистрации.");
             }
-            else {
-                sendMessage(CommandType.ERROR, "Server", "Сначала нужно войти в чат.");
+        }
+        else {
+            sendMessage(CommandType.ERROR, "Server", "Сначала нужно войти в чат.");
+        }
+    }
+
+    // NIO: поток обработки общий и ждать пул входа не может. Ответ возвращается через очередь
+    // соединения, а кадры, пришедшие после запроса, до тех пор ждут в ней же
+    private void awaitAuth(CompletableFuture<AuthService.Result> pending, Consumer<AuthService.Result> then) {
+        awaitingAuth = true;
+        pending.whenComplete((result, error) -> connection.execute(() -> {
+            awaitingAuth = false;
+            if (error != null) {
+                LOGGER.error("Authentication task failed", error);
             }
+            if (!closed.get()) {
+                then.accept(error == null ? result : AuthService.Result.BUSY);
+            }
+        }));
+    }
+
+    private void finishAuthentication(Message request, String login, AuthService.Result result) {
+        if (result == AuthService.Result.BUSY) {
+            sendMessage(CommandType.ERROR, "Server", "Сервер перегружен. Попробуйте войти позже.");
+            return;
+        }
+        if (result != AuthService.Result.OK) {
+            sendMessage(CommandType.ERROR, "Server", "Неверный логин или пароль.");
+            return;
         }
+        trackDeliveries(request);
+        if (!server.claimUsername(login, this)) {
+            sendMessage(CommandType.ERROR, "Server", "Пользователь уже в сети.");
+            LOGGER.warn("User {} tried to login, but already online.", login);
+            return;
+        }
+        completeLogin(request, login, -1, Set.of());
     }
 
-    private void readMessages() throws IOException {
-        while (running) {
-            String json = in.readUTF();
-            Message message = gson.fromJson(json, Message.class);
+    private void finishRegistration(String login, AuthService.Result result) {
+        if (result == AuthService.Result.OK) {
+            server.userRegistered(login);
+            sendMessage(CommandType.REG_OK, "Server", "Регистрация успешна! Пожалуйста, войдите в чат.");
+        } else if (result == AuthService.Result.BUSY) {
+            sendMessage(CommandType.ERROR, "Server", "Сервер перегружен. Попробуйте позже.");
+        } else {
+            sendMessage(CommandType.ERROR, "Server", "Логин '" + login + "' уже занят.");
+        }
+    }
 
-            switch (message.getType()) {
-                case PUBLIC_MESSAGE:
-                    handlePublicMessage(message);
-                    break;
-                case LOGOUT:
-                    LOGGER.info("User {} requested logout", username);
-                    running = false;
-                    sendMessage(CommandType.ERROR, "Server", "logout_ack");
-                    return;
-                default:
-                    LOGGER.warn("Unknown message type from user {}: {}", username, message.getType());
+    // До занятия логина: личное сообщение может прийти, как только обработчик появится в реестре
+    private void trackDeliveries(Message request) {
+        int bufferSize = server.getRetransmitBufferSize();
+        if (!Boolean.TRUE.equals(request.getAcks()) || bufferSize <= 0) {
+            return;
+        }
+        sendLock.lock();
+        try {
+            if (unacked == null) {
+                unacked = new RetransmitBuffer(bufferSize);
             }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Логин уже занят этим соединением. AUTH_OK несёт "<логин> <токен>": старые клиенты берут
+    // только первое слово. afterId >= 0 — возобновление: повторяются лишь пропущенные сообщения
+    private void completeLogin(Message request, String login, long afterId, Set<String> restoreRooms) {
+        this.username = login;
+        this.sessionToken = server.getSessions().open(login, restoreRooms);
+        MessageCodec negotiated = server.isBinaryProtocolEnabled()
+                ? Codecs.byName(request.getCodec())
+                : Codecs.JSON;
+        // AUTH_OK ещё в JSON, всё последующее — уже в согласованном формате. Формат меняется до
+        // отправки: клиент пишет в новом формате сразу по получении ответа, и в NIO его кадр может
+        // быть разобран раньше, чем обработчик дойдёт до следующей строки
+        Message authOk = new Message(CommandType.AUTH_OK, "Server", login + " " + sessionToken);
+        authOk.setCodec(negotiated.getName());
+        byte[] authOkFrame = Frame.of(authOk).bytes(Codecs.JSON);
+        this.codec = negotiated;
+        try {
+            connection.send(authOkFrame);
+        } catch (UncheckedIOException e) {
+            LOGGER.error("Failed to send message", e);
+        }
+        server.subscribe(this, afterId);
+        for (String roomName : restoreRooms) {
+            if (rooms.contains(roomName)) {
+                continue;
+            }
+            Room room = server.getRooms().getOrCreate(roomName);
+            if (room != null) {
+                rooms.add(roomName);
+                room.join(this, afterId, server.getSessionCatchUpMax());
+            }
+        }
+    }
+
+    private void handleChatPhase(Message message) {
+        switch (message.getType()) {
+            case PUBLIC_MESSAGE:
+                handlePublicMessage(message);
+                break;
+            case JOIN:
+                handleJoin(message.getRoom());
+                break;
+            case LEAVE:
+                handleLeave(message.getRoom());
+                break;
+            case ROOM_MESSAGE:
+                handleRoomMessage(message);
+                break;
+            case PRIVATE_MESSAGE:
+                handlePrivateMessage(message);
+                break;
+            case HISTORY_REQUEST:
+                handleHistoryRequest(message);
+                break;
+            case LIST_REQUEST:
+                server.sendClientsList(this);
+                break;
+            case SEARCH:
+                handleSearch(message);
+                break;
+            case ACK:
+                handleAck(message);
+                break;
+            case LOGOUT:
+                LOGGER.info("User {} requested logout", username);
+                server.getSessions().revoke(sessionToken);
+                sessionToken = null;
+                running = false;
+                sendMessage(CommandType.ERROR, "Server", "logout_ack");
+                break;
+            default:
+                LOGGER.warn("Unknown message type from user {}: {}", username, message.getType());
         }
     }
 
     private void handlePublicMessage(Message message) {
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastMessageTime < MESSAGE_DELAY_MS) {
+        if (checkLength(outgoing(CommandType.PUBLIC_MESSAGE, message.getMessage())) && checkMessageRate()) {
+            server.broadcastMessage(this.username, message.getMessage());
+        }
+    }
+
+    private void handleAck(Message message) {
+        long id;
+        try {
+            id = Long.parseLong(message.getMessage().trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return;
+        }
+        int bufferSize = server.getRetransmitBufferSize();
+        sendLock.lock();
+        try {
+            if (unacked == null) {
+                if (bufferSize <= 0) {
+                    return;
+                }
+                unacked = new RetransmitBuffer(bufferSize);
+            }
+            server.getMetrics().add("ack.confirmed", unacked.acknowledge(id));
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Сколько самое старое неподтверждённое сообщение ждёт ACK; -1, если клиент доставку не подтверждает
+    public long getDeliveryLagMs() {
+        sendLock.lock();
+        try {
+            return unacked == null ? -1 : unacked.oldestAgeMs(System.currentTimeMillis());
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // Сообщение в том виде, в каком его разошлёт сервер; id и время — самой длинной записи
+    private Message outgoing(CommandType type, String text) {
+        Message message = new Message(type, username, text);
+        message.setId(Long.MIN_VALUE);
+        message.setTime(Long.MIN_VALUE);
+        return message;
+    }
+
+    private boolean checkLength(Message outgoing) {
+        if (Frame.fitsEveryCodec(outgoing)) {
+            return true;
+        }
+        sendMessage(CommandType.ERROR, "Server", "Сообщение слишком длинное.");
+        LOGGER.warn("Message from {} rejected: does not fit the JSON frame", username);
+        return false;
+    }
+
+    private boolean checkMessageRate() {
+        return allow(RateLimiter.Kind.CHAT, server.getRateLimiter().userBucket(username));
+    }
+
+    // Задержка допустима, только если у соединения свой поток; в NIO она заняла бы общий обработчик
+    private boolean allow(RateLimiter.Kind kind, TokenBucket bucket) {
+        RateLimiter.Verdict verdict = server.getRateLimiter().check(kind, bucket, in != null);
+        if (verdict == RateLimiter.Verdict.ALLOW) {
+            return true;
+        }
+        if (verdict == RateLimiter.Verdict.DISCONNECT) {
+            LOGGER.warn("Rate limit for {} exceeded by {} ({}), disconnecting", kind, username, connection.getRemoteAddress());
+            sendMessage(CommandType.ERROR, "Server", "Слишком много запросов. Соединение закрыто.");
+            running = false;
+            return false;
+        }
+        if (kind == RateLimiter.Kind.CHAT) {
             sendMessage(CommandType.ERROR, "Server", "Вы слишком быстры! Пожалуйста, подождите.");
             LOGGER.warn("User {} is spamming. Message blocked.", username);
+        } else {
+            sendMessage(CommandType.ERROR, "Server", "Слишком много попыток. Попробуйте позже.");
+            LOGGER.warn("Rate limit for {} exceeded from {}", kind, connection.getRemoteAddress());
+        }
+        return false;
+    }
+
+    private void handlePrivateMessage(Message message) {
+        String recipient = message.getRecipient();
+        if (recipient == null || recipient.isBlank() || message.getMessage() == null || message.getMessage().isBlank()) {
+            sendMessage(CommandType.ERROR, "Server", "Укажите получателя и текст сообщения.");
+            return;
+        }
+        Message outgoing = outgoing(CommandType.PRIVATE_MESSAGE, message.getMessage());
+        outgoing.setRecipient(recipient);
+        if (checkLength(outgoing) && checkMessageRate()) {
+            server.sendPrivateMessage(this, recipient, message.getMessage());
+        }
+    }
+
+    private void handleJoin(String roomName) {
+        if (!RoomManager.isValidName(roomName)) {
+            sendMessage(CommandType.ERROR, "Server", "Некорректное название комнаты.");
             return;
         }
-        lastMessageTime = currentTime;
-        server.broadcastMessage(this.username, message.getMessage());
+        if (rooms.contains(roomName)) {
+            return;
+        }
+        if (rooms.size() >= MAX_ROOMS_PER_CLIENT) {
+            sendMessage(CommandType.ERROR, "Server", "Слишком много комнат. Сначала покиньте одну из них.");
+            return;
+        }
+        Room room = server.getRooms().getOrCreate(roomName);
+        if (room == null) {
+            sendMessage(CommandType.ERROR, "Server", "Нельзя создать новую комнату: достигнут предел.");
+            return;
+        }
+        rooms.add(roomName);
+        room.join(this);
+        server.getSessions().updateRooms(sessionToken, rooms);
+    }
+
+    private void handleLeave(String roomName) {
+        Room room = server.getRooms().get(roomName);
+        if (room != null && rooms.remove(roomName)) {
+            room.leave(this);
+            server.getSessions().updateRooms(sessionToken, rooms);
+        }
+    }
+
+    private void handleRoomMessage(Message message) {
+        Room room = server.getRooms().get(message.getRoom());
+        if (room == null || !rooms.contains(room.getName())) {
+            sendMessage(CommandType.ERROR, "Server", "Сначала войдите в комнату.");
+            return;
+        }
+        Message outgoing = outgoing(CommandType.ROOM_MESSAGE, message.getMessage());
+        outgoing.setRoom(room.getName());
+        if (checkLength(outgoing) && checkMessageRate()) {
+            room.broadcast(this, message.getMessage());
+        }
+    }
+
+    private void handleHistoryRequest(Message message) {
+        String[] parts = message.getMessage() == null ? new String[0] : message.getMessage().trim().split("\\s+");
+        try {
+            long beforeId = parts.length > 0 && !parts[0].isEmpty() ? Long.parseLong(parts[0]) : Long.MAX_VALUE;
+            int limit = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_HISTORY_PAGE;
+            String room = message.getRoom();
+            if (room != null && !rooms.contains(room)) {
+                sendMessage(CommandType.ERROR, "Server", "Сначала войдите в комнату.");
+                return;
+            }
+            server.sendHistory(this, room, beforeId <= 0 ? Long.MAX_VALUE : beforeId, limit);
+        } catch (NumberFormatException e) {
+            sendMessage(CommandType.ERROR, "Server", "Некорректный запрос истории.");
+        }
+    }
+
+    private void handleSearch(Message message) {
+        String[] parts = message.getMessage() == null ? new String[0] : message.getMessage().trim().split("\\s+", 3);
+        try {
+            if (parts.length < 3 || parts[2].isBlank()) {
+                sendMessage(CommandType.ERROR, "Server", "Пустой поисковый запрос.");
+                return;
+            }
+            int offset = Integer.parseInt(parts[0]);
+            int limit = Integer.parseInt(parts[1]);
+            server.sendSearchResults(this, Set.copyOf(rooms), offset, limit, parts[2]);
+        } catch (NumberFormatException e) {
+            sendMessage(CommandType.ERROR, "Server", "Некорректный поисковый запрос.");
+        }
     }
 
     public void sendMessage(CommandType type, String sender, String text) {
         try {
-            Message msg = new Message(type, sender, text);
-            out.writeUTF(gson.toJson(msg));
-        } catch (IOException e) {
+            sendFrame(Frame.of(new Message(type, sender, text)));
+        } catch (UncheckedIOException e) {
             LOGGER.error("Failed to send message", e);
         }
     }
 
+    public void sendFrame(Frame frame) {
+        sendLock.lock();
+        try {
+            if (unacked != null && RetransmitBuffer.tracks(frame.getMessage()) && !unacked.add(frame, System.currentTimeMillis())) {
+                server.getMetrics().increment("ack.evicted");
+            }
+            connection.send(frame.bytes(codec));
+        } catch (UncheckedIOException e) {
+            LOGGER.error("Failed to send message", e);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
     public String getUsername() {
         return username;
     }
 
-    private void closeConnection() {
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isAwaitingAuth() {
+        return awaitingAuth;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    void sendPing() {
+        sendMessage(CommandType.PING, "Server", "ping");
+    }
+
+    // Вызывается потоком IdleReaper: соединение обрывается сразу, не дожидаясь, пока это заметит ОС.
+    // Уборку (выход из комнат, возврат личных сообщений во входящие) делает поток самого соединения,
+    // увидев обрыв: у колеса один поток, и запросы к базе задержали бы проверку остальных
+    void evictIdle(long idleMs) {
+        LOGGER.warn("Closing idle connection {} ({}) after {} ms of silence", username, connection.getRemoteAddress(), idleMs);
+        connection.abort();
+    }
+
+    public void abortConnection() {
+        connection.abort();
+        closeConnection();
+    }
+
+    public boolean isConnectionOpen() {
+        return connection.isOpen();
+    }
+
+    public void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        running = false;
+        // Комнаты остаются в сессии: при возобновлении клиент вернётся в них
+        for (String roomName : rooms) {
+            Room room = server.getRooms().get(roomName);
+            if (room != null) {
+                room.leave(this);
+            }
+        }
+        String token = sessionToken;
+        if (token != null) {
+            server.getSessions().detach(token);
+        }
         server.unsubscribe(this);
+        // Общий чат и комнаты клиент догонит по id при возобновлении, а личные сообщения,
+        // доставку которых он не подтвердил, возвращаются во входящие
+        List<Message> undelivered;
+        sendLock.lock();
         try {
-            in.close();
-            out.close();
-            socket.close();
-        } catch (IOException e) {
+            undelivered = unacked == null || username == null ? List.of() : unacked.privateMessagesTo(username);
+        } finally {
+            sendLock.unlock();
+        }
+        if (!undelivered.isEmpty()) {
+            server.requeuePrivate(this, undelivered);
         }
+        server.disconnected(this);
+        connection.close();
     }
-}
\ No newline at end of file
+}
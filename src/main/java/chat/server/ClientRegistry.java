@@ -0,0 +1,64 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Кто в сети. Логин занимается атомарно (claim) ещё до AUTH_OK, поэтому две сессии с одним
+// логином не могут войти одновременно. Рассылка идёт по множеству подписчиков без замка: его
+// итератор не бросает исключений при одновременных входах и выходах, а вход и выход стоят O(1)
+// и не копируют всё множество, как копирующий при записи список.
+public class ClientRegistry {
+    private final ConcurrentHashMap<String, ClientHandler> claims = new ConcurrentHashMap<>();
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    // Подписчики по логину: адресная доставка без обхода списка
+    private final ConcurrentHashMap<String, ClientHandler> subscribed = new ConcurrentHashMap<>();
+
+    public boolean claim(String username, ClientHandler client) {
+        return claims.putIfAbsent(username, client) == null;
+    }
+
+    // Соединение, занявшее логин (возможно, ещё не подписанное), или null
+    public ClientHandler claimant(String username) {
+        return claims.get(username);
+    }
+
+    public boolean isOnline(String username) {
+        return claims.containsKey(username);
+    }
+
+    // Клиент начинает получать рассылку
+    public void add(ClientHandler client) {
+        if (members.add(client)) {
+            subscribed.put(client.getUsername(), client);
+        }
+    }
+
+    // Подписанный клиент с этим логином или null
+    public ClientHandler find(String username) {
+        return username == null ? null : subscribed.get(username);
+    }
+
+    // true, если клиент был подписан на рассылку
+    public boolean remove(ClientHandler client) {
+        String username = client.getUsername();
+        if (username != null) {
+            subscribed.remove(username, client);
+            claims.remove(username, client);
+        }
+        return members.remove(client);
+    }
+
+    public Iterable<ClientHandler> members() {
+        return members;
+    }
+
+    public List<String> usernames() {
+        List<String> usernames = new ArrayList<>(members.size());
+        for (ClientHandler client : members) {
+            usernames.add(client.getUsername());
+        }
+        return usernames;
+    }
+}
@@ -0,0 +1,477 @@
+package chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Шина между узлами кластера. Узел слушает свой порт шины и сам подключается к каждому соседу:
+// по исходящему соединению уходят только его собственные события, по входящим приходят чужие.
+// У каждого соседа своя очередь и один поток записи, входящее соединение читает один поток,
+// поэтому события узла — а значит, и сообщения одного отправителя — применяются у соседей
+// в том же порядке, в каком их разослал сам узел. Присутствие передаётся состоянием
+// («в сети» или нет), а при каждом подключении сосед сначала получает полный список
+// пользователей узла: повтор событий после переподключения ничего не портит.
+// Шина слушает только server.cluster.bind (по умолчанию loopback) и принимает соединения лишь
+// с адресов из server.cluster.peers. Принимающий узел первым шлёт случайный вызов, а HELLO несёт
+// HMAC от вызова и имени узла на общем секрете server.cluster.secret: до проверки ни один кадр
+// соседа не применяется, а подслушанный HELLO не годится для другого соединения.
+class ClusterRelay {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRelay.class);
+    private static final byte HELLO = 1;     // id узла, HMAC вызова, список пользователей в сети
+    private static final byte MESSAGE = 2;   // отправитель, текст сообщения общего чата
+    private static final byte ONLINE = 3;    // логин, вошедший на узле-отправителе
+    private static final byte OFFLINE = 4;   // логин, вышедший с узла-отправителя
+    private static final byte PRIVATE = 5;   // узел получателя, отправитель, получатель, текст
+    private static final byte USER = 6;      // логин и хеш пароля новой учётной записи
+    private static final byte PING = 7;      // соединение живо, хотя событий нет
+    private static final long PING_INTERVAL_MS = 1000;
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_MIN_MS = 200;
+    private static final long RECONNECT_MAX_MS = 5000;
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+    // Строки идут с префиксом длины int, предела writeUTF в 64 КБ здесь нет; 1 МБ — как у кадра
+    // двоичного протокола клиентов. Что текст влезет и в JSON-кадр, проверил узел-отправитель
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+    private static final int NONCE_BYTES = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    private static final Event STOP = new Event(PING);
+
+    private final ServerApp server;
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final ServerMetrics metrics;
+    private final List<Peer> peers = new ArrayList<>();
+    // Кто в сети на других узлах; набор узла меняет только поток его входящего соединения
+    private final ConcurrentHashMap<String, Set<String>> remote = new ConcurrentHashMap<>();
+    // Действующее входящее соединение узла: обрыв устаревшего не стирает состояние нового
+    private final ConcurrentHashMap<String, Socket> links = new ConcurrentHashMap<>();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed = false;
+
+    private static final class Event {
+        private final byte type;
+        private final String[] fields;
+
+        private Event(byte type, String... fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            for (String field : fields) {
+                writeString(out, field);
+            }
+        }
+    }
+
+    // Исходящее соединение к соседу: подключается заново, пока шина не закрыта. Пока связи нет,
+    // события копятся в очереди и уходят после нового HELLO
+    private final class Peer implements Runnable {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<Event> queue;
+        private final Thread thread;
+        private volatile Socket socket;
+
+        private Peer(String host, int port, int queueSize) {
+            this.host = host;
+            this.port = port;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = Thread.ofPlatform().daemon().name("cluster-out-" + host + ":" + port).unstarted(this);
+        }
+
+        @Override
+        public void run() {
+            long pause = RECONNECT_MIN_MS;
+            while (!closed) {
+                try (Socket connected = new Socket()) {
+                    connected.connect(new InetSocketAddress(host, port), READ_TIMEOUT_MS);
+                    connected.setTcpNoDelay(true);
+                    connected.setSoTimeout(READ_TIMEOUT_MS);
+                    socket = connected;
+                    byte[] nonce = new byte[NONCE_BYTES];
+                    new DataInputStream(connected.getInputStream()).readFully(nonce);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+                    writeHello(out, nonce);
+                    LOGGER.info("Cluster link to {}:{} established", host, port);
+                    pause = RECONNECT_MIN_MS;
+                    pump(out);
+                    return;
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    LOGGER.debug("Cluster link to {}:{} failed: {}", host, port, e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    socket = null;
+                }
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pause = Math.min(pause * 2, RECONNECT_MAX_MS);
+            }
+        }
+
+        // Возвращается по STOP; при обрыве событие, которое не удалось записать, теряется
+        private void pump(DataOutputStream out) throws IOException, InterruptedException {
+            while (true) {
+                Event event = queue.poll(PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (event == STOP) {
+                    out.flush();
+                    return;
+                }
+                if (event == null) {
+                    out.writeByte(PING);
+                    out.flush();
+                    continue;
+                }
+                event.write(out);
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        }
+
+        // Очередь переполнена: сосед давно недоступен или не успевает. Копить дальше нельзя, поэтому
+        // очередь сбрасывается, а соединение рвётся — после переподключения HELLO заново передаст
+        // присутствие, но сообщения из сброшенной очереди сосед уже не получит
+        private void offer(Event event) {
+            if (queue.offer(event)) {
+                return;
+            }
+            int dropped = queue.size() + 1;
+            queue.clear();
+            metrics.add("cluster.dropped", dropped);
+            LOGGER.warn("Cluster queue to {}:{} overflowed, {} events dropped", host, port, dropped);
+            closeQuietly(socket);
+        }
+    }
+
+    ClusterRelay(ServerApp server, String nodeId, String bindAddress, int port, String peerList, String secret, int queueSize, ServerMetrics metrics) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("server.cluster.secret must be set when the cluster is enabled");
+        }
+        this.server = server;
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.metrics = metrics;
+        for (String address : peerList.split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port, got '" + address + "'");
+            }
+            peers.add(new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)), queueSize));
+        }
+    }
+
+    void start() throws IOException {
+        ServerSocket listening = new ServerSocket();
+        try {
+            listening.bind(new InetSocketAddress(bindAddress, port));
+        } catch (IOException e) {
+            closeQuietly(listening);
+            throw e;
+        }
+        serverSocket = listening;
+        Thread.ofPlatform().daemon().name("cluster-accept").start(this::acceptLoop);
+        for (Peer peer : peers) {
+            peer.thread.start();
+        }
+        LOGGER.info("Cluster node {} listening on {}:{}, peers: {}", nodeId, bindAddress, port, peers.size());
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofPlatform().daemon().name("cluster-in-" + socket.getPort()).start(() -> read(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.error("Cluster accept failed", e);
+                }
+                return;
+            }
+        }
+    }
+
+    private void writeHello(DataOutputStream out, byte[] nonce) throws IOException {
+        List<String> users = server.localUsernames();
+        out.writeByte(HELLO);
+        writeString(out, nodeId);
+        out.write(proof(nonce, nodeId));
+        out.writeInt(users.size());
+        for (String username : users) {
+            writeString(out, username);
+        }
+        out.flush();
+    }
+
+    private void read(Socket socket) {
+        String node = null;
+        try (socket) {
+            if (!isPeerAddress(socket.getInetAddress())) {
+                LOGGER.warn("Cluster connection from {} rejected: not in server.cluster.peers", socket.getRemoteSocketAddress());
+                return;
+            }
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            byte[] nonce = new byte[NONCE_BYTES];
+            random.nextBytes(nonce);
+            OutputStream challenge = socket.getOutputStream();
+            challenge.write(nonce);
+            challenge.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected HELLO");
+            }
+            String claimed = readString(in);
+            byte[] proof = new byte[MAC_BYTES];
+            in.readFully(proof);
+            if (!MessageDigest.isEqual(proof, proof(nonce, claimed))) {
+                LOGGER.warn("Cluster connection from {} rejected: wrong secret for node {}", socket.getRemoteSocketAddress(), claimed);
+                return;
+            }
+            node = claimed;
+            int count = in.readInt();
+            Set<String> users = ConcurrentHashMap.newKeySet();
+            for (int i = 0; i < count; i++) {
+                users.add(readString(in));
+            }
+            closeQuietly(links.put(node, socket));
+            Set<String> previous = remote.put(node, users);
+            LOGGER.info("Cluster node {} connected with {} users online", node, count);
+            presenceChanged(previous == null ? Set.of() : previous, users);
+
+            while (true) {
+                byte type = in.readByte();
+                if (type == PING) {
+                    continue;
+                }
+                metrics.increment("cluster.received");
+                switch (type) {
+                    case MESSAGE: {
+                        String sender = readString(in);
+                        server.deliverRelayed(sender, readString(in));
+                        break;
+                    }
+                    case ONLINE:
+                    case OFFLINE: {
+                        String username = readString(in);
+                        if (type == ONLINE ? users.add(username) : users.remove(username)) {
+                            server.remotePresenceChanged(username);
+                        }
+                        break;
+                    }
+                    case PRIVATE: {
+                        String target = readString(in);
+                        String sender = readString(in);
+                        String recipient = readString(in);
+                        String text = readString(in);
+                        if (nodeId.equals(target)) {
+                            server.deliverRelayedPrivate(sender, recipient, text);
+                        }
+                        break;
+                    }
+                    case USER: {
+                        String login = readString(in);
+                        server.getAuthService().importUser(login, readString(in));
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown cluster frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            LOGGER.info("Cluster node {} disconnected", node == null ? socket.getRemoteSocketAddress() : node);
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.warn("Cluster link from {} lost: {}", node == null ? socket.getRemoteSocketAddress() : node, e.getMessage());
+            }
+        } finally {
+            // Узел недоступен — его пользователи для нас больше не в сети
+            if (node != null && links.remove(node, socket)) {
+                Set<String> gone = remote.remove(node);
+                if (gone != null) {
+                    presenceChanged(gone, Set.of());
+                }
+            }
+        }
+    }
+
+    // Имена соседей разрешаются при каждом подключении: адрес за именем мог смениться
+    private boolean isPeerAddress(InetAddress address) {
+        for (Peer peer : peers) {
+            try {
+                for (InetAddress allowed : InetAddress.getAllByName(peer.host)) {
+                    if (allowed.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                LOGGER.debug("Cluster peer {} does not resolve: {}", peer.host, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private byte[] proof(byte[] nonce, String node) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(nonce);
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private void presenceChanged(Set<String> before, Set<String> after) {
+        Set<String> changed = new LinkedHashSet<>(before);
+        changed.addAll(after);
+        for (String username : changed) {
+            if (before.contains(username) != after.contains(username)) {
+                server.remotePresenceChanged(username);
+            }
+        }
+    }
+
+    void publishMessage(String sender, String text) {
+        publish(new Event(MESSAGE, sender, text));
+    }
+
+    void publishPresence(String username, boolean online) {
+        publish(new Event(online ? ONLINE : OFFLINE, username));
+    }
+
+    void publishPrivate(String node, String sender, String recipient, String text) {
+        publish(new Event(PRIVATE, node, sender, recipient, text));
+    }
+
+    void publishUser(String login, String passwordHash) {
+        publish(new Event(USER, login, passwordHash));
+    }
+
+    private void publish(Event event) {
+        if (closed) {
+            return;
+        }
+        metrics.increment("cluster.published");
+        for (Peer peer : peers) {
+            peer.offer(event);
+        }
+    }
+
+    boolean isOnline(String username) {
+        return nodeOf(username) != null;
+    }
+
+    // Узел, на котором пользователь сейчас в сети, или null
+    String nodeOf(String username) {
+        for (Map.Entry<String, Set<String>> entry : remote.entrySet()) {
+            if (entry.getValue().contains(username)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    List<String> usernames() {
+        List<String> usernames = new ArrayList<>();
+        for (Set<String> users : remote.values()) {
+            usernames.addAll(users);
+        }
+        return usernames;
+    }
+
+    // Отправляет соседям уже поставленное в очереди и закрывает соединения
+    void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Peer peer : peers) {
+            if (peer.socket == null || !peer.queue.offer(STOP)) {
+                peer.thread.interrupt();
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+        for (Peer peer : peers) {
+            try {
+                peer.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            closeQuietly(peer.socket);
+        }
+        for (Socket socket : links.values()) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package chat.server;
+
+import chat.common.Message;
+import chat.common.codec.Codecs;
+import chat.common.codec.MessageCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Готовый к отправке кадр: сообщение сериализуется не более одного раза на формат,
+// и один и тот же массив байт уходит всем получателям с этим форматом.
+// Ни сообщение, ни массивы не изменяются после создания кадра.
+public final class Frame {
+    // Имена полей, тип, id, время и прочее, кроме строк сообщения
+    private static final int FIXED_FIELDS_BYTES = 512;
+
+    private final Message message;
+
+    private volatile byte[] jsonBytes;
+    private volatile byte[] binaryBytes;
+
+    private Frame(Message message) {
+        this.message = message;
+    }
+
+    public static Frame of(Message message) {
+        return new Frame(message);
+    }
+
+    // Рассылка кодирует сообщение в формат каждого получателя, и оно должно поместиться в самый
+    // тесный: JSON внутри writeUTF ограничен 65535 байтами, а двоичный кадр — мегабайтом. Иначе
+    // получатели со старым форматом молча его не получат
+    public static boolean fitsEveryCodec(Message message) {
+        // Gson пишет любой символ не длиннее шести байт (экранированный код): короткий текст не проверяем
+        long chars = length(message.getMessage()) + length(message.getSender()) + length(message.getRoom()) + length(message.getRecipient());
+        if (chars * 6 + FIXED_FIELDS_BYTES <= 0xFFFF) {
+            return true;
+        }
+        try {
+            Codecs.JSON.encode(message);
+            Codecs.BINARY.encode(message);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public byte[] bytes() {
+        return bytes(Codecs.JSON);
+    }
+
+    // Гонка при первом кодировании безобидна: оба потока получат одинаковые байты
+    public byte[] bytes(MessageCodec codec) {
+        if (codec == Codecs.BINARY) {
+            byte[] bytes = binaryBytes;
+            if (bytes == null) {
+                bytes = encode(codec);
+                binaryBytes = bytes;
+            }
+            return bytes;
+        }
+        byte[] bytes = jsonBytes;
+        if (bytes == null) {
+            bytes = encode(codec);
+            jsonBytes = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] encode(MessageCodec codec) {
+        try {
+            return codec.encode(message);
+        } catch (IOException e) {
+            // JSON не помещается в writeUTF (больше 65535 байт) или кадр больше допустимого
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Закрывает молчащие соединения: полуоткрытый сокет иначе держит поток, место в реестре и в
+// каждой рассылке, пока ОС не заметит обрыв. Вместо таймера на соединение — одно колесо из слотов
+// по tickMs и один поток. Соединение лежит в слоте своей ближайшей проверки; входящий кадр лишь
+// обновляет отметку времени в ClientHandler, а при проверке соединение переносится в слот
+// следующей. После pingMs тишины уходит PING, после idleMs соединение закрывается.
+class IdleReaper {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdleReaper.class);
+
+    private final long tickNanos;
+    private final long pingNanos;
+    private final long idleNanos;
+    private final ServerMetrics metrics;
+    private final List<Queue<ClientHandler>> wheel;
+    // Слот, который сейчас обходит поток колеса; меняется только им
+    private volatile long currentTick = 0;
+
+    IdleReaper(long pingMs, long idleMs, long tickMs, ServerMetrics metrics) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.pingNanos = TimeUnit.MILLISECONDS.toNanos(pingMs);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+        this.metrics = metrics;
+        // Самая дальняя проверка — через idleMs, поэтому одного оборота колеса хватает
+        int slots = (int) (idleMs / tickMs) + 2;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("idle-reaper").factory());
+        ticker.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    void watch(ClientHandler client) {
+        schedule(client, client.getLastActivity() + nextCheckDelay());
+    }
+
+    private long nextCheckDelay() {
+        return pingNanos > 0 && pingNanos < idleNanos ? pingNanos : idleNanos;
+    }
+
+    // Постановка из другого потока во время сдвига колеса может опоздать на один слот — не страшно
+    private void schedule(ClientHandler client, long deadlineNanos) {
+        long ticks = Math.max(1, (deadlineNanos - System.nanoTime() + tickNanos - 1) / tickNanos);
+        ticks = Math.min(ticks, wheel.size() - 1);
+        wheel.get((int) ((currentTick + ticks) % wheel.size())).add(client);
+    }
+
+    private void advance() {
+        try {
+            long tick = currentTick + 1;
+            currentTick = tick;
+            Queue<ClientHandler> slot = wheel.get((int) (tick % wheel.size()));
+            long now = System.nanoTime();
+            ClientHandler client;
+            while ((client = slot.poll()) != null) {
+                check(client, now);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Idle check failed", e);
+        }
+    }
+
+    private void check(ClientHandler client, long now) {
+        if (!client.isRunning()) {
+            return;
+        }
+        long idle = now - client.getLastActivity();
+        if (idle >= idleNanos) {
+            metrics.increment("idle.evicted");
+            client.evictIdle(TimeUnit.NANOSECONDS.toMillis(idle));
+            return;
+        }
+        // PING уходит один раз за период тишины: следующая проверка — уже срок закрытия
+        if (pingNanos > 0 && idle >= pingNanos) {
+            metrics.increment("heartbeat.pings");
+            client.sendPing();
+            schedule(client, client.getLastActivity() + idleNanos);
+            return;
+        }
+        schedule(client, client.getLastActivity() + nextCheckDelay());
+    }
+}
@@ -0,0 +1,128 @@
+package chat.server;
+
+import chat.common.CommandType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Кольцевой буфер последних сообщений чата. Хранит готовые кадры, поэтому повтор истории
+// при входе не обращается к базе и не сериализует сообщения заново.
+public class MessageHistory {
+    private final Frame[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int head = 0; // Индекс, куда попадёт следующее сообщение
+    private int size = 0;
+
+    public MessageHistory(int capacity) {
+        this.ring = new Frame[Math.max(1, capacity)];
+    }
+
+    public void append(Frame frame) {
+        lock.lock();
+        try {
+            ring[head] = frame;
+            head = (head + 1) % ring.length;
+            if (size < ring.length) {
+                size++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Последние limit сообщений от старых к новым
+    public List<Frame> latest(int limit) {
+        lock.lock();
+        try {
+            int count = Math.min(limit, size);
+            List<Frame> result = new ArrayList<>(count);
+            int start = head - count + ring.length;
+            for (int i = 0; i < count; i++) {
+                result.add(ring[(start + i) % ring.length]);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // До limit сообщений с id меньше beforeId, от старых к новым
+    public List<Frame> before(long beforeId, int limit) {
+        lock.lock();
+        try {
+            List<Frame> result = new ArrayList<>();
+            for (int i = 1; i <= size && result.size() < limit; i++) {
+                Frame frame = ring[(head - i + ring.length) % ring.length];
+                Long id = frame.getMessage().getId();
+                if (id != null && id < beforeId) {
+                    result.add(frame);
+                }
+            }
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Кольцо хранит всё, что новее afterId: либо самое старое сообщение в нём не позже afterId + 1,
+    // либо кольцо ещё не заполнено и в нём вся история
+    public boolean covers(long afterId) {
+        lock.lock();
+        try {
+            if (size < ring.length) {
+                return true;
+            }
+            Long oldest = ring[head].getMessage().getId();
+            return oldest != null && oldest <= afterId + 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // До limit самых новых сообщений с id больше afterId, от старых к новым. older — уже прочитанное
+    // из базы начало пропуска (если кольцо его не покрывает); кольцо дополняет его более новыми.
+    // Новые важнее: повтор должен сомкнуться с живой рассылкой. Чтобы узнать, уместился ли пропуск
+    // целиком, вызывающий просит на одно сообщение больше, чем собирается отправить (см. catchUp)
+    public List<Frame> after(long afterId, List<Frame> older, int limit) {
+        long from = older.isEmpty() ? afterId : older.get(older.size() - 1).getMessage().getId();
+        List<Frame> result = new ArrayList<>();
+        lock.lock();
+        try {
+            for (int i = 1; i <= size && result.size() < limit; i++) {
+                Frame frame = ring[(head - i + ring.length) % ring.length];
+                Long id = frame.getMessage().getId();
+                if (id != null && id <= from) {
+                    break;
+                }
+                if (id != null) {
+                    result.add(frame);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        Collections.reverse(result);
+        int fromOlder = Math.min(older.size(), limit - result.size());
+        result.addAll(0, older.subList(older.size() - fromOlder, older.size()));
+        return result;
+    }
+
+    // Повтор пропущенного после возобновления: до limit самых новых сообщений после afterId.
+    // Если пропуск больше, клиент сначала получает notice — молча терять середину нельзя
+    public List<Frame> catchUp(long afterId, List<Frame> older, int limit, ClientHandler client, String notice) {
+        List<Frame> replay = after(afterId, older, limit + 1);
+        if (replay.size() <= limit) {
+            return replay;
+        }
+        client.sendMessage(CommandType.ERROR, "Server", notice);
+        return replay.subList(1, replay.size());
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+}
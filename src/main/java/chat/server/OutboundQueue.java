@@ -0,0 +1,75 @@
+package chat.server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Очередь исходящих кадров одного клиента. Ограничена по байтам: выше highWaterBytes клиент
+// считается медленным, и если он не успевает разгрузиться за slowTimeoutMs (или очередь
+// упирается в maxBytes), offer() возвращает причину отключения.
+public class OutboundQueue {
+    private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long maxBytes;
+    private final long highWaterBytes;
+    private final long slowTimeoutMs;
+
+    private volatile long overHighWaterSince = 0;
+
+    public OutboundQueue(long maxBytes, long highWaterBytes, long slowTimeoutMs) {
+        this.maxBytes = maxBytes;
+        this.highWaterBytes = highWaterBytes;
+        this.slowTimeoutMs = slowTimeoutMs;
+    }
+
+    // null — кадр принят, иначе текст причины, по которой клиента нужно отключить
+    public String offer(byte[] frame) {
+        long queued = queuedBytes.addAndGet(frame.length);
+        if (queued > maxBytes) {
+            queuedBytes.addAndGet(-frame.length);
+            return "outbound queue is full (" + queued + " bytes > " + maxBytes + ")";
+        }
+        if (queued > highWaterBytes) {
+            long now = System.currentTimeMillis();
+            long since = overHighWaterSince;
+            if (since == 0) {
+                overHighWaterSince = now;
+            } else if (now - since > slowTimeoutMs) {
+                queuedBytes.addAndGet(-frame.length);
+                return "outbound queue above " + highWaterBytes + " bytes for " + (now - since) + " ms";
+            }
+        }
+        frames.add(frame);
+        return null;
+    }
+
+    public byte[] poll() {
+        return onRemoved(frames.poll());
+    }
+
+    public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return onRemoved(frames.poll(timeout, unit));
+    }
+
+    private byte[] onRemoved(byte[] frame) {
+        if (frame != null && queuedBytes.addAndGet(-frame.length) <= highWaterBytes) {
+            overHighWaterSince = 0;
+        }
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public void clear() {
+        frames.clear();
+        queuedBytes.set(0);
+        overHighWaterSince = 0;
+    }
+}
@@ -0,0 +1,147 @@
+package chat.server;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import chat.common.PresenceUpdate;
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Входы и выходы за окно windowMs сливаются в одно событие и одну системную строку: после
+// рестарта сервера сотни переподключений дают одно обновление списка, а не сотни.
+// При windowMs = 0 каждое изменение отправляется сразу. В кластере сюда же приходят входы и выходы
+// на других узлах: системную строку о них пишет и рассылает их собственный узел.
+class PresenceCoalescer {
+    private static final int MAX_NAMES_IN_LINE = 10;
+
+    private final ServerApp server;
+    private final ClientRegistry registry;
+    private final ReentrantLock lock;
+    private final long windowMs;
+    private final ServerMetrics metrics;
+    private final Gson gson = new Gson();
+    private final ScheduledExecutorService scheduler;
+
+    // Поля ниже меняются только под lock
+    private final Set<String> touched = new LinkedHashSet<>();
+    // Изменения на этом узле: о них сообщается соседям по кластеру
+    private final Set<String> touchedLocally = new LinkedHashSet<>();
+    private int pendingEvents = 0;
+    private boolean flushScheduled = false;
+    private long version = 0;
+
+    PresenceCoalescer(ServerApp server, ClientRegistry registry, ReentrantLock lock, long windowMs, ServerMetrics metrics) {
+        this.server = server;
+        this.registry = registry;
+        this.lock = lock;
+        this.windowMs = windowMs;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("presence-flush").factory());
+    }
+
+    void record(String username) {
+        record(username, true);
+    }
+
+    void recordRemote(String username) {
+        record(username, false);
+    }
+
+    private void record(String username, boolean local) {
+        lock.lock();
+        try {
+            touched.add(username);
+            if (local) {
+                touchedLocally.add(username);
+            }
+            pendingEvents++;
+            metrics.increment("presence.events");
+            if (windowMs <= 0) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Вызывать под lock
+    long getVersion() {
+        return version;
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (touched.isEmpty()) {
+                return;
+            }
+            // Итог берём из реестра, а не из порядка событий: выход старой сессии, записанный
+            // после входа новой, не «выключит» переподключившегося пользователя
+            Set<String> local = new HashSet<>(registry.usernames());
+            Set<String> online = new HashSet<>(server.onlineUsernames());
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            List<String> joinedLocally = new ArrayList<>();
+            for (String username : touched) {
+                (online.contains(username) ? joined : left).add(username);
+            }
+            for (String username : touchedLocally) {
+                server.publishPresence(username, local.contains(username));
+                if (local.contains(username)) {
+                    joinedLocally.add(username);
+                }
+            }
+            metrics.increment("presence.batches");
+            metrics.add("presence.merged", pendingEvents - 1);
+            touched.clear();
+            touchedLocally.clear();
+            pendingEvents = 0;
+
+            long current = ++version;
+            Message update;
+            // Одиночное изменение — прежним событием, его понимают и старые клиенты
+            if (joined.size() + left.size() == 1) {
+                update = joined.isEmpty()
+                        ? new Message(CommandType.USER_LOGOUT, left.get(0), "покинул чат.")
+                        : new Message(CommandType.USER_JOINED, joined.get(0), "вошёл в чат.");
+            } else {
+                update = new Message(CommandType.PRESENCE_UPDATE, "Server", gson.toJson(new PresenceUpdate(joined, left)));
+            }
+            update.setId(current);
+            Frame frame = Frame.of(update);
+            for (ClientHandler client : registry.members()) {
+                client.sendFrame(frame);
+            }
+
+            if (!joinedLocally.isEmpty()) {
+                server.broadcastMessage("СИСТЕМА", joinedLine(joinedLocally));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String joinedLine(List<String> joined) {
+        if (joined.size() == 1) {
+            return "Пользователь " + joined.get(0) + " присоединился к чату.";
+        }
+        StringBuilder line = new StringBuilder("К чату присоединились: ");
+        line.append(String.join(", ", joined.subList(0, Math.min(joined.size(), MAX_NAMES_IN_LINE))));
+        if (joined.size() > MAX_NAMES_IN_LINE) {
+            line.append(" и ещё ").append(joined.size() - MAX_NAMES_IN_LINE);
+        }
+        return line.append('.').toString();
+    }
+}
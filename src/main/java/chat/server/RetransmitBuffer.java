@@ -0,0 +1,83 @@
+package chat.server;
+
+import chat.common.CommandType;
+import chat.common.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Сообщения с id, которые ушли клиенту, но ещё не подтверждены ACK, — в порядке отправки.
+// Кадры идут по соединению по порядку, поэтому ACK подтверждает и всё, что было отправлено
+// раньше. id в порядке отправки не обязательно растут (общий чат и комнаты рассылают разные
+// потоки), поэтому буфер обрезается до подтверждённого кадра, а не по сравнению id.
+// Не потокобезопасен: ClientHandler пополняет его под тем же замком, под которым ставит кадр
+// в очередь отправки, чтобы порядок в буфере совпадал с порядком в сокете.
+class RetransmitBuffer {
+    private static final class Entry {
+        private final Frame frame;
+        private final long sentAt;
+
+        private Entry(Frame frame, long sentAt) {
+            this.frame = frame;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int capacity;
+
+    RetransmitBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    // Подтверждаются только сообщения чата: у событий присутствия в id версия, а не номер сообщения
+    static boolean tracks(Message message) {
+        CommandType type = message.getType();
+        return message.getId() != null
+                && (type == CommandType.PUBLIC_MESSAGE || type == CommandType.ROOM_MESSAGE || type == CommandType.PRIVATE_MESSAGE);
+    }
+
+    // false — буфер был полон, и самое старое сообщение вытеснено без подтверждения
+    boolean add(Frame frame, long now) {
+        boolean evicted = entries.size() >= capacity;
+        if (evicted) {
+            entries.pollFirst();
+        }
+        entries.addLast(new Entry(frame, now));
+        return !evicted;
+    }
+
+    // Сколько сообщений подтвердил ACK; 0, если такого id в буфере нет (повтор или устаревший ACK)
+    int acknowledge(long id) {
+        int count = 0;
+        for (Entry entry : entries) {
+            count++;
+            if (entry.frame.getMessage().getId() == id) {
+                for (int i = 0; i < count; i++) {
+                    entries.pollFirst();
+                }
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    // Сколько ждёт подтверждения самое старое сообщение; 0, если ждать нечего
+    long oldestAgeMs(long now) {
+        Entry oldest = entries.peekFirst();
+        return oldest == null ? 0 : now - oldest.sentAt;
+    }
+
+    // Неподтверждённые личные сообщения этому получателю; копии, отправленные ему как автору, не нужны
+    List<Message> privateMessagesTo(String username) {
+        List<Message> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            Message message = entry.frame.getMessage();
+            if (message.getType() == CommandType.PRIVATE_MESSAGE && username.equals(message.getRecipient())) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,183 @@
+package chat.server;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import chat.server.db.Durability;
+import chat.server.db.MessageStore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Комната: свой состав, своя кольцевая история и свой замок. Рассылка и изменения состава
+// выполняются по очереди на однопоточном шарде комнаты, поэтому порядок внутри комнаты
+// сохраняется без общего замка, а разные комнаты рассылаются параллельно на разных ядрах.
+public class Room {
+    private final String name;
+    private final Executor shard;
+    private final MessageHistory history;
+    private final int replaySize;
+    private final MessageStore messageStore;
+    private final AuthService authService;
+    private final RoomManager manager;
+    // Сколько клиентов держат комнату в своём списке; меняется только внутри compute в RoomManager
+    int holders = 0;
+    // Замок только на назначение id и постановку в очередь записи: порядок в базе = порядок рассылки
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Поля ниже меняются только в потоке шарда
+    private final Set<ClientHandler> members = new LinkedHashSet<>();
+    private boolean warming = false;
+    // Задачи, пришедшие до загрузки истории, и сообщения, разосланные за это время
+    private final List<Runnable> waiting = new ArrayList<>();
+    private final List<Frame> fannedOutWhileWarming = new ArrayList<>();
+    // Пишется только шардом; читается потоками клиентов, решающими, нужна ли догрузка из базы
+    private volatile boolean warmedUp = false;
+
+    Room(String name, Executor shard, int historyCapacity, int replaySize, MessageStore messageStore, AuthService authService, RoomManager manager) {
+        this.name = name;
+        this.shard = shard;
+        this.history = new MessageHistory(Math.max(historyCapacity, replaySize));
+        this.replaySize = replaySize;
+        this.messageStore = messageStore;
+        this.authService = authService;
+        this.manager = manager;
+    }
+
+    public void join(ClientHandler client) {
+        join(client, -1, replaySize);
+    }
+
+    // afterId >= 0 — возвращение в комнату при возобновлении сессии: повторяются только пропущенные сообщения
+    public void join(ClientHandler client, long afterId, int limit) {
+        // Пропуск, который кольцо может не покрыть, читается из базы в потоке клиента, а не на шарде:
+        // чтение заняло бы шард вместе со всеми закреплёнными за ним комнатами
+        List<Frame> older = new ArrayList<>();
+        if (afterId >= 0 && (!warmedUp || !history.covers(afterId))) {
+            for (Message message : authService.getMessagesAfter(name, afterId, limit + 1)) {
+                older.add(Frame.of(message));
+            }
+        }
+        shard.execute(() -> whenWarm(() -> {
+            if (!members.add(client)) {
+                return;
+            }
+            List<Frame> replay = afterId < 0
+                    ? history.latest(limit)
+                    : history.catchUp(afterId, older, limit, client, "Пока вас не было, в комнату #" + name + " пришло больше " + limit + " сообщений. Показаны последние из них.");
+            for (Frame frame : replay) {
+                client.sendFrame(frame);
+            }
+            sendToMembers(event(CommandType.JOIN, client.getUsername(), "вошёл в комнату."));
+        }));
+    }
+
+    // Клиент отпускает комнату сразу; последний ушедший убирает её из RoomManager, и она больше не занимает место под пределом
+    public void leave(ClientHandler client) {
+        shard.execute(() -> whenWarm(() -> {
+            if (members.remove(client)) {
+                Frame frame = event(CommandType.LEAVE, client.getUsername(), "покинул комнату.");
+                client.sendFrame(frame);
+                sendToMembers(frame);
+            }
+        }));
+        manager.release(this);
+    }
+
+    public void broadcast(ClientHandler from, String text) {
+        lock.lock();
+        try {
+            long id = messageStore.nextId();
+            long time = System.currentTimeMillis();
+            Message message = new Message(CommandType.ROOM_MESSAGE, from.getUsername(), text);
+            message.setId(id);
+            message.setTime(time);
+            message.setRoom(name);
+            Frame frame = Frame.of(message);
+            CompletableFuture<Void> persisted = messageStore.append(id, name, from.getUsername(), text, time);
+            // В COMMIT рассылаем только записанное; не принятое в очередь не рассылаем ни в каком режиме
+            if (messageStore.getDurability() == Durability.COMMIT || persisted.isCompletedExceptionally()) {
+                persisted.whenComplete((ignored, error) -> shard.execute(() -> {
+                    if (error != null) {
+                        from.sendMessage(CommandType.ERROR, "Server", "Не удалось сохранить сообщение. Попробуйте ещё раз.");
+                    } else {
+                        fanOut(frame);
+                    }
+                }));
+            } else {
+                shard.execute(() -> fanOut(frame));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fanOut(Frame frame) {
+        if (warmedUp) {
+            history.append(frame);
+        } else if (warming) {
+            fannedOutWhileWarming.add(frame);
+        }
+        sendToMembers(frame);
+    }
+
+    private void sendToMembers(Frame frame) {
+        for (ClientHandler member : members) {
+            member.sendFrame(frame);
+        }
+    }
+
+    // Кольцо комнаты заполняется из базы при первом входе, а не при старте сервера. Чтение идёт
+    // в пуле базы; до его окончания задачи шарда для этой комнаты ждут в порядке поступления
+    private void whenWarm(Runnable task) {
+        if (warmedUp) {
+            task.run();
+            return;
+        }
+        waiting.add(task);
+        if (warming) {
+            return;
+        }
+        warming = true;
+        authService.getLastMessagesAsync(name, history.getCapacity())
+                .whenComplete((messages, error) -> shard.execute(() -> finishWarmUp(error == null ? messages : List.of())));
+    }
+
+    private void finishWarmUp(List<Message> lastMessages) {
+        long lastId = 0;
+        for (Message message : lastMessages) {
+            history.append(Frame.of(message));
+            lastId = message.getId();
+        }
+        // Разосланное во время чтения могло уже попасть в выборку
+        for (Frame frame : fannedOutWhileWarming) {
+            if (frame.getMessage().getId() > lastId) {
+                history.append(frame);
+            }
+        }
+        fannedOutWhileWarming.clear();
+        warmedUp = true;
+        for (Runnable task : waiting) {
+            task.run();
+        }
+        waiting.clear();
+    }
+
+    private Frame event(CommandType type, String username, String text) {
+        Message message = new Message(type, username, text);
+        message.setRoom(name);
+        return Frame.of(message);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageHistory getHistory() {
+        return history;
+    }
+}
@@ -0,0 +1,72 @@
+package chat.server;
+
+import chat.server.db.MessageStore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+// Комнаты создаются при первом входе и убираются, когда их покидает последний клиент. Каждая закреплена за одним
+// из однопоточных шардов по хешу имени: так нагрузка делится между ядрами, а внутри комнаты
+// всё идёт по порядку.
+public class RoomManager {
+    private static final Pattern ROOM_NAME = Pattern.compile("[\\p{L}\\p{N}_-]{1,32}");
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ExecutorService[] shards;
+    private final int maxRooms;
+    private final int historyCapacity;
+    private final int replaySize;
+    private final MessageStore messageStore;
+    private final AuthService authService;
+
+    public RoomManager(int shardCount, int maxRooms, int historyCapacity, int replaySize, MessageStore messageStore, AuthService authService) {
+        this.shards = new ExecutorService[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("room-fanout-" + (i + 1)).factory());
+        }
+        this.maxRooms = maxRooms;
+        this.historyCapacity = historyCapacity;
+        this.replaySize = replaySize;
+        this.messageStore = messageStore;
+        this.authService = authService;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && ROOM_NAME.matcher(name).matches();
+    }
+
+    // null, если достигнут предел числа комнат. Вызывающий держит комнату, пока не вызовет leave:
+    // счётчик меняется в compute, поэтому комнату нельзя убрать между поиском и входом
+    public Room getOrCreate(String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                if (rooms.size() >= maxRooms) {
+                    return null;
+                }
+                room = new Room(key, shardFor(key), historyCapacity, replaySize, messageStore, authService, this);
+            }
+            room.holders++;
+            return room;
+        });
+    }
+
+    void release(Room room) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> current != room || --current.holders > 0 ? current : null);
+    }
+
+    public Room get(String name) {
+        return name == null ? null : rooms.get(name);
+    }
+
+    private ExecutorService shardFor(String name) {
+        return shards[Math.floorMod(name.hashCode(), shards.length)];
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+    }
+}
@@ -1,132 +1,891 @@
 package chat.server;
 
 import chat.common.CommandType;
+import chat.common.HistoryPage;
 import chat.common.Message;
+import chat.common.SearchPage;
+import chat.server.db.Durability;
+import chat.server.db.InboxStore;
+import chat.server.db.MessageStore;
+import chat.server.db.SearchIndex;
+import chat.server.db.SqliteConnectionManager;
+import chat.server.nio.NioServer;
+import chat.server.ratelimit.RateLimiter;
 import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class ServerApp {
+public final class ServerApp {
     static {
         System.setProperty("logback.configurationFile", "src/main/resources/logbackserver.xml");
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ServerApp.class);
-    private static final int MAX_CLIENTS = 40;
+    private static final int DEFAULT_POOL_SIZE = 40;
+    private static final int DEFAULT_MAX_CLIENTS = 10_000;
+    private static final int DEFAULT_DB_THREADS = 4;
+    // Половина ядер под хеширование паролей, остальное — рассылке
+    private static final int DEFAULT_AUTH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int DEFAULT_AUTH_QUEUE_SIZE = 10_000;
+    private static final String DEFAULT_DB_URL = "jdbc:sqlite:chat.db";
+    private static final int DEFAULT_DB_READERS = 4;
+    private static final int DEFAULT_DB_CACHE_KB = 16 * 1024;
+    private static final int DEFAULT_PERSISTENCE_BATCH_SIZE = 256;
+    private static final long DEFAULT_PERSISTENCE_BATCH_DELAY_MS = 50;
+    private static final int DEFAULT_HISTORY_CAPACITY = 1000;
+    private static final int DEFAULT_HISTORY_REPLAY_SIZE = 20;
+    private static final int MAX_HISTORY_PAGE = 500;
+    // Оценка сверху в байтах modified UTF-8; остаток до 64 КБ кадра writeUTF — на обёртку кадра
+    private static final int HISTORY_CHUNK_BYTES = 48 * 1024;
+    private static final int DEFAULT_SEARCH_BACKFILL_BATCH_SIZE = 5000;
+    private static final long DEFAULT_SEARCH_BACKFILL_PAUSE_MS = 20;
+    private static final int DEFAULT_SEARCH_RANK_WINDOW = 10_000;
+    private static final int MAX_SEARCH_PAGE = 50;
+    private static final int MAX_SEARCH_OFFSET = 1000;
+    private static final long DEFAULT_PRESENCE_COALESCE_MS = 200;
+    private static final int DEFAULT_INBOX_MAX_PER_USER = 1000;
+    private static final long DEFAULT_SESSION_TTL_MINUTES = 30;
+    private static final int DEFAULT_SESSION_CATCHUP_MAX = 500;
+    private static final int DEFAULT_MAX_ROOMS = 1000;
+    private static final int DEFAULT_ROOM_HISTORY_CAPACITY = 200;
+    private static final long DEFAULT_OUTBOUND_MAX_BYTES = 1024 * 1024;
+    private static final long DEFAULT_OUTBOUND_HIGH_WATER_BYTES = 256 * 1024;
+    private static final long DEFAULT_OUTBOUND_SLOW_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 15_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 45_000;
+    private static final long DEFAULT_IDLE_TICK_MS = 1000;
+    private static final long DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_SHUTDOWN_STORAGE_TIMEOUT_MS = 10_000;
+    private static final long DEFAULT_SHUTDOWN_RECONNECT_DELAY_MS = 5000;
+    private static final long DRAIN_POLL_MS = 50;
+    private static final int DEFAULT_CLUSTER_QUEUE_SIZE = 10_000;
+    private static final String DEFAULT_CLUSTER_BIND = "127.0.0.1";
+    // -Dserver.config=<файл>: настройки узла поверх встроенного application.properties
+    private static final String CONFIG_PROPERTY = "server.config";
+    private static final int DEFAULT_RETRANSMIT_BUFFER_SIZE = 1000;
 
     private int port;
-    private final List<ClientHandler> clients;
+    private ServerMode mode = ServerMode.THREADS;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private int maxClients = DEFAULT_MAX_CLIENTS;
+    private int dbThreads = DEFAULT_DB_THREADS;
+    private int authThreads = DEFAULT_AUTH_THREADS;
+    private int authQueueSize = DEFAULT_AUTH_QUEUE_SIZE;
+    private int passwordIterations = PasswordHasher.DEFAULT_ITERATIONS;
+    private String dbUrl = DEFAULT_DB_URL;
+    private int dbReaders = DEFAULT_DB_READERS;
+    private int dbCacheSizeKb = DEFAULT_DB_CACHE_KB;
+    private Durability durability = Durability.ASYNC;
+    private int persistenceBatchSize = DEFAULT_PERSISTENCE_BATCH_SIZE;
+    private long persistenceBatchDelayMs = DEFAULT_PERSISTENCE_BATCH_DELAY_MS;
+    private int historyCapacity = DEFAULT_HISTORY_CAPACITY;
+    private int historyReplaySize = DEFAULT_HISTORY_REPLAY_SIZE;
+    private int searchBackfillBatchSize = DEFAULT_SEARCH_BACKFILL_BATCH_SIZE;
+    private long searchBackfillPauseMs = DEFAULT_SEARCH_BACKFILL_PAUSE_MS;
+    private int searchRankWindow = DEFAULT_SEARCH_RANK_WINDOW;
+    private long presenceCoalesceMs = DEFAULT_PRESENCE_COALESCE_MS;
+    private int inboxMaxPerUser = DEFAULT_INBOX_MAX_PER_USER;
+    private long sessionTtlMinutes = DEFAULT_SESSION_TTL_MINUTES;
+    private boolean sessionPersist = true;
+    private int sessionCatchUpMax = DEFAULT_SESSION_CATCHUP_MAX;
+    private int maxRooms = DEFAULT_MAX_ROOMS;
+    private int roomHistoryCapacity = DEFAULT_ROOM_HISTORY_CAPACITY;
+    private int roomFanoutThreads = Runtime.getRuntime().availableProcessors();
+    private int nioWorkers = Runtime.getRuntime().availableProcessors();
+    private long outboundMaxBytes = DEFAULT_OUTBOUND_MAX_BYTES;
+    private long outboundHighWaterBytes = DEFAULT_OUTBOUND_HIGH_WATER_BYTES;
+    private long outboundSlowTimeoutMs = DEFAULT_OUTBOUND_SLOW_TIMEOUT_MS;
+    private long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private long idleTickMs = DEFAULT_IDLE_TICK_MS;
+    private long shutdownDrainTimeoutMs = DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS;
+    private long shutdownStorageTimeoutMs = DEFAULT_SHUTDOWN_STORAGE_TIMEOUT_MS;
+    private long shutdownReconnectDelayMs = DEFAULT_SHUTDOWN_RECONNECT_DELAY_MS;
+    private boolean binaryProtocolEnabled = true;
+    private int clusterPort = 0;
+    private String clusterNodeId;
+    private String clusterBind = DEFAULT_CLUSTER_BIND;
+    private String clusterPeers = "";
+    private String clusterSecret = "";
+    private int clusterQueueSize = DEFAULT_CLUSTER_QUEUE_SIZE;
+    private int retransmitBufferSize = DEFAULT_RETRANSMIT_BUFFER_SIZE;
+    private Properties config = new Properties();
+    private final ClientRegistry registry = new ClientRegistry();
+    private final SqliteConnectionManager db;
     private final AuthService authService;
+    private final MessageStore messageStore;
+    private final SearchIndex searchIndex;
+    private final InboxStore inbox;
+    private final SessionStore sessions;
+    private final RoomManager rooms;
+    private final MessageHistory history;
     private final Gson gson;
-    private final ExecutorService executorService;
+    private final Semaphore admissions;
+    // ReentrantLock вместо synchronized: виртуальный поток не закрепляется за носителем при блокировке внутри
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicBoolean storageClosed = new AtomicBoolean(false);
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+    // Все открытые соединения, в том числе ещё не вошедшие: их предупреждают и закрывают при остановке
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile ExecutorService clientExecutor;
+    private volatile NioServer nioServer;
+    private final ServerMetrics metrics = new ServerMetrics();
+    // Рассылка после фиксации в режиме COMMIT; null в остальных режимах
+    private final ExecutorService commitFanOut;
+    private final PresenceCoalescer presence;
+    private final RateLimiter rateLimiter;
+    // null, если server.idle.timeout.ms = 0: молчащие соединения не закрываются
+    private final IdleReaper idleReaper;
+    // null, если server.cluster.port не задан: сервер работает один
+    private final ClusterRelay cluster;
 
     public ServerApp() {
-        this.clients = new ArrayList<>();
-        this.authService = new AuthService();
+        this(System.getProperty(CONFIG_PROPERTY));
+    }
+
+    // configPath (может быть null) перекрывает значения из встроенного application.properties
+    public ServerApp(String configPath) {
+        loadConfig(configPath);
+        try {
+            this.db = new SqliteConnectionManager(dbUrl, dbReaders, dbCacheSizeKb);
+            this.authService = new AuthService(db, dbThreads, new PasswordHasher(passwordIterations), authThreads, authQueueSize);
+            this.messageStore = new MessageStore(db, durability, persistenceBatchSize, persistenceBatchDelayMs);
+            this.inbox = new InboxStore(db, inboxMaxPerUser);
+            this.sessions = new SessionStore(sessionPersist ? db : null, TimeUnit.MINUTES.toMillis(sessionTtlMinutes));
+            this.searchIndex = new SearchIndex(db, searchBackfillBatchSize, searchBackfillPauseMs, searchRankWindow);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open database " + dbUrl, e);
+        }
+        this.commitFanOut = durability == Durability.COMMIT
+                ? Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("commit-fanout").factory())
+                : null;
+        this.history = new MessageHistory(Math.max(historyCapacity, historyReplaySize));
+        warmUpHistory();
+        searchIndex.startBackfill();
+        this.rooms = new RoomManager(roomFanoutThreads, maxRooms, roomHistoryCapacity, historyReplaySize, messageStore, authService);
         this.gson = new Gson();
-        this.executorService = Executors.newFixedThreadPool(MAX_CLIENTS);
-        loadConfig();
+        this.admissions = new Semaphore(maxClients);
+        this.rateLimiter = new RateLimiter(config, metrics);
+        this.presence = new PresenceCoalescer(this, registry, lock, presenceCoalesceMs, metrics);
+        this.idleReaper = idleTimeoutMs > 0 ? new IdleReaper(heartbeatIntervalMs, idleTimeoutMs, idleTickMs, metrics) : null;
+        this.cluster = clusterPort > 0 ? new ClusterRelay(this, clusterNodeId, clusterBind, clusterPort, clusterPeers, clusterSecret, clusterQueueSize, metrics) : null;
+        metrics.setDeliveryLagSource(this::deliveryLagMs);
+        metrics.setPersistQueueDepthSource(messageStore::getPendingCount);
+        metrics.register();
+    }
+
+    private void warmUpHistory() {
+        List<Message> lastMessages = authService.getLastMessages(null, history.getCapacity());
+        for (Message message : lastMessages) {
+            history.append(Frame.of(message));
+        }
+        LOGGER.info("History warmed up with {} messages", lastMessages.size());
     }
 
     public static void main(String[] args) {
-        new ServerApp().start();
+        new ServerApp(args.length > 0 ? args[0] : System.getProperty(CONFIG_PROPERTY)).start();
     }
 
     public void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "server-shutdown"));
+        try {
+            if (cluster != null) {
+                cluster.start();
+            }
+            switch (mode) {
+                case NIO:
+                    startSelector();
+                    break;
+                case VIRTUAL:
+                    startThreadPerClient(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 1).factory()));
+                    break;
+                default:
+                    startThreadPerClient(Executors.newFixedThreadPool(poolSize));
+            }
+        } catch (IOException e) {
+            LOGGER.error("Failed to start cluster relay on port {}", clusterPort, e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    // Остановка по SIGTERM или при падении цикла приёма: перестаём принимать соединения, рассылаем
+    // SERVER_SHUTDOWN с рекомендуемой паузой и ждём до срока, пока клиенты сами закроют соединения.
+    // Всё, что клиент отправил до предупреждения, приходит раньше его закрытия и успевает
+    // обработаться, а очереди отправки тем временем пустеют. Оставшихся обрываем и только затем
+    // дописываем базу. Сессии отсоединяются, а не закрываются: после перезапуска клиенты
+    // возвращаются через RESUME
+    public void shutdown() {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(shutdownDrainTimeoutMs);
+        List<ClientHandler> draining = new ArrayList<>(connections);
+        LOGGER.info("Shutting down, {} connections open", draining.size());
+        stopAccepting();
+
+        Frame notice = Frame.of(new Message(CommandType.SERVER_SHUTDOWN, "Server", String.valueOf(shutdownReconnectDelayMs)));
+        for (ClientHandler client : draining) {
+            client.sendFrame(notice);
+        }
+        awaitDrained(draining, deadline);
+
+        // Не успевшие к сроку, а также подключившиеся, пока закрывался приём
+        int aborted = 0;
+        for (ClientHandler client : connections) {
+            client.abortConnection();
+            aborted++;
+        }
+        for (ClientHandler client : draining) {
+            if (client.isConnectionOpen()) {
+                client.abortConnection();
+            }
+        }
+        stopWorkers(deadline);
+        // Соседи узнают об уходе пользователей узла по закрытию шины
+        if (cluster != null) {
+            cluster.close();
+        }
+        long drained = System.nanoTime();
+
+        closeStorage(shutdownStorageTimeoutMs);
+        long end = System.nanoTime();
+        metrics.add("shutdown.drain.ms", TimeUnit.NANOSECONDS.toMillis(drained - begin));
+        metrics.add("shutdown.storage.ms", TimeUnit.NANOSECONDS.toMillis(end - drained));
+        metrics.add("shutdown.latency.ms", TimeUnit.NANOSECONDS.toMillis(end - begin));
+        metrics.add("shutdown.aborted", aborted);
+        LOGGER.info("Shutdown completed in {} ms (drain {} ms, {} of {} connections aborted, storage {} ms)",
+                TimeUnit.NANOSECONDS.toMillis(end - begin), TimeUnit.NANOSECONDS.toMillis(drained - begin),
+                aborted, draining.size(), TimeUnit.NANOSECONDS.toMillis(end - drained));
+    }
+
+    private void stopAccepting() {
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        NioServer nio = nioServer;
+        if (nio != null) {
+            nio.stopAccepting();
+        }
+    }
+
+    // Соединение считается завершённым, когда обработчик разобрал всё входящее до закрытия
+    // клиентом и отпустил соединение, а очередь отправки опустела и сокет закрыт
+    private void awaitDrained(List<ClientHandler> draining, long deadline) {
+        for (ClientHandler client : draining) {
+            while ((connections.contains(client) || client.isConnectionOpen()) && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(DRAIN_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Обработчики доделывают уже принятые кадры, чтобы сообщения попали в очередь записи до её закрытия
+    private void stopWorkers(long deadline) {
+        long remainingMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        ExecutorService executor = clientExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(remainingMs, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("Client threads did not finish before the shutdown deadline");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        NioServer nio = nioServer;
+        if (nio != null) {
+            nio.stop(remainingMs);
+        }
+        rateLimiter.shutdown();
+    }
+
+    private void closeStorage(long flushTimeoutMs) {
+        if (storageClosed.compareAndSet(false, true)) {
+            searchIndex.close();
+            rooms.shutdown();
+            messageStore.close(flushTimeoutMs);
+            if (commitFanOut != null) {
+                commitFanOut.shutdown();
+            }
+            sessions.close();
+            authService.close();
+            db.close();
+        }
+    }
+
+    private void startSelector() {
+        try {
+            LOGGER.info("Server started on port: {} (mode: {}, workers: {})", port, mode, nioWorkers);
+            LOGGER.info("Max connections limit: {}", maxClients);
+            nioServer = new NioServer(this, port, nioWorkers);
+            nioServer.start();
+        } catch (IOException e) {
+            LOGGER.error("Server error", e);
+        }
+    }
+
+    private void startThreadPerClient(ExecutorService executorService) {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            LOGGER.info("Server started on port: {}", port);
-            LOGGER.info("Max connections limit: {}", MAX_CLIENTS);
+            this.serverSocket = serverSocket;
+            this.clientExecutor = executorService;
+            LOGGER.info("Server started on port: {} (mode: {})", port, mode);
+            LOGGER.info("Max connections limit: {}", maxClients);
 
-            while (true) {
+            while (!stopping.get()) {
                 Socket socket = serverSocket.accept();
+                if (!tryAdmit()) {
+                    reject(socket);
+                    continue;
+                }
                 LOGGER.info("Client connected: {}", socket.getInetAddress());
-                ClientHandler handler = new ClientHandler(this, socket);
-                executorService.execute(handler);
+                try {
+                    ClientHandler handler = new ClientHandler(this, socket);
+                    connected(handler);
+                    executorService.execute(handler);
+                } catch (IOException e) {
+                    releaseAdmission();
+                    LOGGER.warn("Failed to set up client {}", socket.getInetAddress(), e);
+                }
             }
         } catch (IOException e) {
-            LOGGER.error("Server error", e);
+            if (!stopping.get()) {
+                LOGGER.error("Server error", e);
+            }
         } finally {
             executorService.shutdown();
         }
     }
 
-    public synchronized void subscribe(ClientHandler client) {
-        clients.add(client);
-        broadcastClientsList();
+    public OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundMaxBytes, outboundHighWaterBytes, outboundSlowTimeoutMs);
+    }
+
+    public ThreadFactory getWriterThreadFactory() {
+        if (mode == ServerMode.VIRTUAL) {
+            return Thread.ofVirtual().name("writer-", 1).factory();
+        }
+        return Thread.ofPlatform().daemon().name("writer-", 1).factory();
+    }
+
+    public void connected(ClientHandler client) {
+        connections.add(client);
+        if (idleReaper != null) {
+            idleReaper.watch(client);
+        }
+    }
+
+    public void disconnected(ClientHandler client) {
+        if (connections.remove(client)) {
+            releaseAdmission();
+        }
+    }
+
+    public boolean isBinaryProtocolEnabled() {
+        return binaryProtocolEnabled;
+    }
+
+    public boolean tryAdmit() {
+        return admissions.tryAcquire();
+    }
+
+    public void releaseAdmission() {
+        admissions.release();
+    }
+
+    private void reject(Socket socket) {
+        LOGGER.warn("Connection limit {} reached, rejecting {}", maxClients, socket.getInetAddress());
+        try (socket) {
+            socket.getOutputStream().write(getRejectionFrame());
+        } catch (IOException e) {
+        }
+    }
+
+    public byte[] getRejectionFrame() {
+        return Frame.of(new Message(CommandType.ERROR, "Server", "Сервер переполнен. Попробуйте подключиться позже.")).bytes();
+    }
+
+    // Логин занимается до ответа AUTH_OK: проверка и вход — одна атомарная операция. Вход на
+    // другом узле кластера виден с задержкой шины, поэтому там проверка не атомарна
+    public boolean claimUsername(String username, ClientHandler client) {
+        if (cluster != null && cluster.isOnline(username)) {
+            return false;
+        }
+        return registry.claim(username, client);
+    }
+
+    // Возобновление сессии вытесняет прежнее соединение: сервер мог ещё не заметить, что оно оборвалось.
+    // Вытесняется только соединение этого узла: вошедшего на другом узле не трогаем, как и при входе
+    public boolean claimUsernameForResume(String username, ClientHandler client) {
+        if (cluster != null && cluster.isOnline(username)) {
+            return false;
+        }
+        if (registry.claim(username, client)) {
+            return true;
+        }
+        ClientHandler previous = registry.claimant(username);
+        if (previous != null && previous != client) {
+            LOGGER.info("Session of {} resumed from a new connection, closing the old one", username);
+            previous.closeConnection();
+        }
+        return registry.claim(username, client);
+    }
+
+    public void subscribe(ClientHandler client) {
+        subscribe(client, -1);
+    }
+
+    // afterId >= 0 — возобновление сессии: вместо последних сообщений клиент получает пропущенные после afterId
+    public void subscribe(ClientHandler client, long afterId) {
+        // Если кольцо не покрывает пропуск, его начало читаем из базы до замка рассылки
+        List<Frame> older = new ArrayList<>();
+        if (afterId >= 0 && !history.covers(afterId)) {
+            for (Message message : authService.getMessagesAfter(null, afterId, sessionCatchUpMax + 1)) {
+                older.add(Frame.of(message));
+            }
+        }
+        lock.lock();
+        try {
+            // Повтор истории и подписка под замком рассылки: ни одно сообщение между ними не потеряется и не придёт дважды
+            List<Frame> replay = afterId < 0
+                    ? history.latest(historyReplaySize)
+                    : history.catchUp(afterId, older, sessionCatchUpMax, client, "Пока вас не было, в чат пришло больше " + sessionCatchUpMax + " сообщений. Показаны последние из них.");
+            for (Frame frame : replay) {
+                client.sendFrame(frame);
+            }
+            registry.add(client);
+            // Полный список получает только вошедший, остальным — событие (возможно, объединённое с другими)
+            sendClientsList(client);
+            presence.record(client.getUsername());
+        } finally {
+            lock.unlock();
+        }
+        deliverInbox(client);
+    }
+
+    // Личные сообщения идут напрямую получателю через индекс реестра, без замка рассылки
+    public void sendPrivateMessage(ClientHandler from, String recipient, String text) {
+        Message message = new Message(CommandType.PRIVATE_MESSAGE, from.getUsername(), text);
+        message.setRecipient(recipient);
+        // id из общей последовательности: по нему клиент подтверждает доставку и отбрасывает повторы
+        message.setId(messageStore.nextId());
+        message.setTime(System.currentTimeMillis());
+        Frame frame = Frame.of(message);
 
-        List<Message> history = authService.getLastMessages(20);
-        for (Message msg : history) {
-            client.sendMessage(CommandType.PUBLIC_MESSAGE, msg.getSender(), msg.getMessage());
+        ClientHandler target = registry.find(recipient);
+        if (target != null) {
+            target.sendFrame(frame);
+            if (target != from) {
+                from.sendFrame(frame);
+            }
+            return;
+        }
+        String node = cluster == null ? null : cluster.nodeOf(recipient);
+        if (node != null) {
+            cluster.publishPrivate(node, from.getUsername(), recipient, text);
+            from.sendFrame(frame);
+            return;
         }
 
-        broadcastMessage("СИСТЕМА", "Пользователь " + client.getUsername() + " присоединился к чату.");
+        InboxStore.SaveResult result = authService.callDb(() -> inbox.save(recipient, from.getUsername(), text, message.getId(), message.getTime()));
+        switch (result) {
+            case SAVED:
+                from.sendFrame(frame);
+                from.sendMessage(CommandType.ERROR, "Server", "Пользователь " + recipient + " не в сети. Сообщение будет доставлено при входе.");
+                // Получатель мог войти, пока сообщение сохранялось: тогда забираем входящие сами
+                ClientHandler late = registry.find(recipient);
+                if (late != null) {
+                    deliverInbox(late);
+                }
+                break;
+            case UNKNOWN_RECIPIENT:
+                from.sendMessage(CommandType.ERROR, "Server", "Пользователь " + recipient + " не найден.");
+                break;
+            case INBOX_FULL:
+                from.sendMessage(CommandType.ERROR, "Server", "У пользователя " + recipient + " слишком много непрочитанных сообщений.");
+                break;
+            default:
+                from.sendMessage(CommandType.ERROR, "Server", "Не удалось отправить личное сообщение.");
+        }
+    }
+
+    // Личное сообщение с другого узла. Если получатель успел выйти, оно ждёт его во входящих этого узла
+    void deliverRelayedPrivate(String sender, String recipient, String text) {
+        Message message = new Message(CommandType.PRIVATE_MESSAGE, sender, text);
+        message.setRecipient(recipient);
+        message.setId(messageStore.nextId());
+        message.setTime(System.currentTimeMillis());
+        ClientHandler target = registry.find(recipient);
+        if (target != null) {
+            target.sendFrame(Frame.of(message));
+            return;
+        }
+        InboxStore.SaveResult result = authService.callDb(() -> inbox.save(recipient, sender, text, message.getId(), message.getTime()));
+        if (result != InboxStore.SaveResult.SAVED) {
+            LOGGER.warn("Relayed private message from {} to {} dropped: {}", sender, recipient, result);
+        }
+    }
+
+    // Личные сообщения, доставку которых клиент не подтвердил до закрытия соединения. Если он уже
+    // вошёл заново (возобновление вытесняет старое соединение), они уходят ему сразу
+    void requeuePrivate(ClientHandler client, List<Message> undelivered) {
+        String username = client.getUsername();
+        int saved = 0;
+        for (Message message : undelivered) {
+            InboxStore.SaveResult result = authService.callDb(() -> inbox.save(username, message.getSender(), message.getMessage(), message.getId(), message.getTime()));
+            if (result == InboxStore.SaveResult.SAVED) {
+                saved++;
+            }
+        }
+        metrics.add("ack.requeued", saved);
+        LOGGER.info("Returned {} of {} unconfirmed private messages to the inbox of {}", saved, undelivered.size(), username);
+        ClientHandler current = registry.find(username);
+        if (current != null && current != client) {
+            deliverInbox(current);
+        }
+    }
+
+    private void deliverInbox(ClientHandler client) {
+        List<Message> pending = authService.callDb(() -> inbox.takeAll(client.getUsername()));
+        for (Message message : pending) {
+            // Сохранённые до появления id во входящих получают его при доставке
+            if (message.getId() == null) {
+                message.setId(messageStore.nextId());
+            }
+            client.sendFrame(Frame.of(message));
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Delivered {} offline messages to {}", pending.size(), client.getUsername());
+        }
     }
 
-    public synchronized void unsubscribe(ClientHandler client) {
+    public void unsubscribe(ClientHandler client) {
         String username = client.getUsername();
-        boolean removed = clients.remove(client);
+        boolean removed = registry.remove(client);
         if (removed && username != null) {
             LOGGER.info("User {} disconnected", username);
-            broadcastClientsList();
-            // Уведомляем всех о выходе пользователя
-            for (ClientHandler c : clients) {
-                c.sendMessage(CommandType.USER_LOGOUT, username, "покинул чат.");
+            // При остановке уходят все разом: рассылать их выходы некому
+            if (!stopping.get()) {
+                presence.record(username);
             }
         }
     }
 
-    public synchronized void broadcastMessage(String sender, String message) {
-        authService.saveMessage(sender, message);
-        for (ClientHandler client : clients) {
-            client.sendMessage(CommandType.PUBLIC_MESSAGE, sender, message);
+    public void broadcastMessage(String sender, String message) {
+        broadcast(sender, message, true);
+    }
+
+    // Сообщение с другого узла кластера: получает свой id этого узла и в шину обратно не уходит
+    void deliverRelayed(String sender, String message) {
+        broadcast(sender, message, false);
+    }
+
+    private void broadcast(String sender, String message, boolean publish) {
+        lock.lock();
+        try {
+            // id и постановка в очередь записи под тем же замком: порядок в базе совпадает с порядком рассылки
+            long id = messageStore.nextId();
+            long time = System.currentTimeMillis();
+            Message chatMessage = new Message(CommandType.PUBLIC_MESSAGE, sender, message);
+            chatMessage.setId(id);
+            chatMessage.setTime(time);
+            Frame frame = Frame.of(chatMessage);
+            CompletableFuture<Void> persisted = messageStore.append(id, null, sender, message, time);
+            if (persisted.isCompletedExceptionally()) {
+                rejectUnsaved(sender);
+                return;
+            }
+            if (messageStore.getDurability() == Durability.COMMIT) {
+                // Будущее завершает поток записи, а рассылке нужен этот замок: если бы поток записи
+                // ждал его, пока отправитель под замком ждёт места в очереди, оба встали бы навсегда.
+                // Однопоточный исполнитель сохраняет порядок фиксации
+                persisted.whenCompleteAsync((ignored, error) -> {
+                    if (error != null) {
+                        rejectUnsaved(sender);
+                    } else {
+                        fanOut(frame);
+                    }
+                }, commitFanOut);
+            } else {
+                fanOut(frame);
+            }
+            // Под тем же замком: соседи получают сообщения в порядке рассылки на этом узле
+            if (publish && cluster != null) {
+                cluster.publishMessage(sender, message);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void broadcastClientsList() {
-        List<String> usernames = clients.stream()
-                .map(ClientHandler::getUsername)
-                .collect(Collectors.toList());
+    private void rejectUnsaved(String sender) {
+        ClientHandler client = registry.find(sender);
+        if (client != null) {
+            client.sendMessage(CommandType.ERROR, "Server", "Не удалось сохранить сообщение. Попробуйте ещё раз.");
+        } else {
+            LOGGER.warn("Message from {} was not saved and is not delivered", sender);
+        }
+    }
 
-        String jsonUserList = gson.toJson(usernames);
+    private void fanOut(Frame frame) {
+        lock.lock();
+        try {
+            history.append(frame);
+            for (ClientHandler client : registry.members()) {
+                client.sendFrame(frame);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        for (ClientHandler client : clients) {
-            client.sendMessage(CommandType.CLIENT_MESSAGE, "Server", jsonUserList);
+    // Сначала берём то, что есть в кольцевом буфере, а недостающее — из базы по ключу id.
+    // room = null — общий чат
+    public void sendHistory(ClientHandler client, String room, long beforeId, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE));
+        Room target = rooms.get(room);
+        MessageHistory ring = room == null ? history : target.getHistory();
+        List<Message> page = new ArrayList<>(pageSize);
+        for (Frame frame : ring.before(beforeId, pageSize)) {
+            page.add(frame.getMessage());
+        }
+        if (page.size() < pageSize) {
+            long dbBeforeId = page.isEmpty() ? beforeId : page.get(0).getId();
+            page.addAll(0, authService.getMessagesBefore(room, dbBeforeId, pageSize - page.size()));
+        }
+        boolean hasMore = page.size() == pageSize;
+
+        // Длинную страницу режем на несколько кадров, чтобы каждый поместился в writeUTF
+        List<Message> chunk = new ArrayList<>();
+        long chunkBytes = 0;
+        for (Message message : page) {
+            long messageBytes = encodedSizeInPage(message);
+            if (!chunk.isEmpty() && chunkBytes + messageBytes > HISTORY_CHUNK_BYTES) {
+                sendHistoryChunk(client, chunk, false, hasMore);
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(message);
+            chunkBytes += messageBytes;
+        }
+        sendHistoryChunk(client, chunk, true, hasMore);
+    }
+
+    // Сколько байт сообщение займёт в кадре HISTORY_PAGE, оценка сверху. Кириллица — два байта
+    // modified UTF-8 на символ, а страница ещё раз экранируется как строка внешнего JSON: кавычки
+    // и обратные косые удваиваются, поэтому берём длину JSON сообщения вдвое плюс запятую
+    private long encodedSizeInPage(Message message) {
+        String json = gson.toJson(message);
+        long bytes = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            bytes += c >= 0x01 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return 2 * bytes + 1;
+    }
+
+    private void sendHistoryChunk(ClientHandler client, List<Message> messages, boolean last, boolean hasMore) {
+        String json = gson.toJson(new HistoryPage(messages, last, hasMore));
+        client.sendMessage(CommandType.HISTORY_PAGE, "Server", json);
+    }
+
+    public void sendSearchResults(ClientHandler client, Set<String> rooms, int offset, int limit, String query) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_SEARCH_PAGE));
+        int from = Math.max(0, Math.min(offset, MAX_SEARCH_OFFSET));
+        try {
+            SearchPage page = authService.callDb(() -> searchIndex.search(query, rooms, from, pageSize));
+            client.sendMessage(CommandType.SEARCH_RESULT, "Server", gson.toJson(page));
+        } catch (IllegalStateException e) {
+            LOGGER.warn("Search '{}' failed: {}", query, e.getCause() == null ? e.getMessage() : e.getCause().getMessage());
+            client.sendMessage(CommandType.ERROR, "Server", "Не удалось выполнить поиск.");
+        }
+    }
+
+    // Полный список с версией: при входе и по LIST_REQUEST, когда клиент заметил пропуск в версиях
+    public void sendClientsList(ClientHandler client) {
+        lock.lock();
+        try {
+            String jsonUserList = gson.toJson(onlineUsernames());
+            Message snapshot = new Message(CommandType.CLIENT_MESSAGE, "Server", jsonUserList);
+            snapshot.setId(presence.getVersion());
+            client.sendFrame(Frame.of(snapshot));
+        } finally {
+            lock.unlock();
         }
     }
 
     public AuthService getAuthService() { return authService; }
 
-    public synchronized boolean isUserOnline(String username) {
-        for (ClientHandler client : clients) {
-            if (client.getUsername() != null && client.getUsername().equals(username)) {
-                return true;
+    public ServerMetrics getMetrics() { return metrics; }
+
+    public RoomManager getRooms() { return rooms; }
+
+    public RateLimiter getRateLimiter() { return rateLimiter; }
+
+    public SessionStore getSessions() { return sessions; }
+
+    public int getSessionCatchUpMax() { return sessionCatchUpMax; }
+
+    public int getRetransmitBufferSize() { return retransmitBufferSize; }
+
+    // Для JMX: задержка подтверждения по каждому клиенту, который присылает ACK
+    private Map<String, Long> deliveryLagMs() {
+        Map<String, Long> lag = new TreeMap<>();
+        for (ClientHandler client : registry.members()) {
+            long ms = client.getDeliveryLagMs();
+            if (ms >= 0) {
+                lag.put(client.getUsername(), ms);
             }
         }
-        return false;
+        return lag;
+    }
+
+    public boolean isUserOnline(String username) {
+        return registry.isOnline(username) || (cluster != null && cluster.isOnline(username));
     }
 
-    private void loadConfig() {
+    // Кто в сети во всём кластере
+    List<String> onlineUsernames() {
+        if (cluster == null) {
+            return registry.usernames();
+        }
+        Set<String> usernames = new LinkedHashSet<>(registry.usernames());
+        usernames.addAll(cluster.usernames());
+        return new ArrayList<>(usernames);
+    }
+
+    List<String> localUsernames() {
+        return registry.usernames();
+    }
+
+    // Вход или выход на этом узле, уже учтённый в реестре
+    void publishPresence(String username, boolean online) {
+        if (cluster != null) {
+            cluster.publishPresence(username, online);
+        }
+    }
+
+    void remotePresenceChanged(String username) {
+        if (!stopping.get()) {
+            presence.recordRemote(username);
+        }
+    }
+
+    public void userRegistered(String login) {
+        String passwordHash = cluster == null ? null : authService.getPasswordHash(login);
+        if (passwordHash != null) {
+            cluster.publishUser(login, passwordHash);
+        }
+    }
+
+    private void loadConfig(String configPath) {
         try (InputStream input = getClass().getClassLoader().getResourceAsStream("application.properties")) {
             Properties prop = new Properties();
-            if (input == null) {
+            if (input == null && configPath == null) {
                 this.port = 8189;
                 return;
             }
-            prop.load(input);
+            if (input != null) {
+                prop.load(input);
+            }
+            if (configPath != null) {
+                loadExternalConfig(prop, configPath);
+            }
+            this.config = prop;
             this.port = Integer.parseInt(prop.getProperty("server.port"));
+            this.mode = ServerMode.fromProperty(prop.getProperty("server.mode"));
+            this.nioWorkers = Integer.parseInt(prop.getProperty("server.nio.workers", String.valueOf(nioWorkers)));
+            this.poolSize = Integer.parseInt(prop.getProperty("server.threads.pool.size", String.valueOf(DEFAULT_POOL_SIZE)));
+            this.maxClients = Integer.parseInt(prop.getProperty("server.max.clients", String.valueOf(DEFAULT_MAX_CLIENTS)));
+            this.dbThreads = Integer.parseInt(prop.getProperty("server.db.threads", String.valueOf(DEFAULT_DB_THREADS)));
+            this.authThreads = Integer.parseInt(prop.getProperty("server.auth.threads", String.valueOf(DEFAULT_AUTH_THREADS)));
+            this.authQueueSize = Integer.parseInt(prop.getProperty("server.auth.queue.size", String.valueOf(DEFAULT_AUTH_QUEUE_SIZE)));
+            this.passwordIterations = Integer.parseInt(prop.getProperty("server.auth.pbkdf2.iterations", String.valueOf(PasswordHasher.DEFAULT_ITERATIONS)));
+            this.dbUrl = prop.getProperty("server.db.url", DEFAULT_DB_URL);
+            this.dbReaders = Integer.parseInt(prop.getProperty("server.db.readers", String.valueOf(DEFAULT_DB_READERS)));
+            this.dbCacheSizeKb = Integer.parseInt(prop.getProperty("server.db.cache.kb", String.valueOf(DEFAULT_DB_CACHE_KB)));
+            this.durability = Durability.fromProperty(prop.getProperty("server.persistence.durability"));
+            this.persistenceBatchSize = Integer.parseInt(prop.getProperty("server.persistence.batch.size", String.valueOf(DEFAULT_PERSISTENCE_BATCH_SIZE)));
+            this.persistenceBatchDelayMs = Long.parseLong(prop.getProperty("server.persistence.batch.delay.ms", String.valueOf(DEFAULT_PERSISTENCE_BATCH_DELAY_MS)));
+            this.historyCapacity = Integer.parseInt(prop.getProperty("server.history.capacity", String.valueOf(DEFAULT_HISTORY_CAPACITY)));
+            this.historyReplaySize = Integer.parseInt(prop.getProperty("client.message.history.size", String.valueOf(DEFAULT_HISTORY_REPLAY_SIZE)));
+            this.outboundMaxBytes = Long.parseLong(prop.getProperty("server.outbound.max.bytes", String.valueOf(DEFAULT_OUTBOUND_MAX_BYTES)));
+            this.outboundHighWaterBytes = Long.parseLong(prop.getProperty("server.outbound.high.water.bytes", String.valueOf(DEFAULT_OUTBOUND_HIGH_WATER_BYTES)));
+            this.outboundSlowTimeoutMs = Long.parseLong(prop.getProperty("server.outbound.slow.timeout.ms", String.valueOf(DEFAULT_OUTBOUND_SLOW_TIMEOUT_MS)));
+            this.searchBackfillBatchSize = Integer.parseInt(prop.getProperty("server.search.backfill.batch.size", String.valueOf(DEFAULT_SEARCH_BACKFILL_BATCH_SIZE)));
+            this.searchBackfillPauseMs = Long.parseLong(prop.getProperty("server.search.backfill.pause.ms", String.valueOf(DEFAULT_SEARCH_BACKFILL_PAUSE_MS)));
+            this.searchRankWindow = Integer.parseInt(prop.getProperty("server.search.rank.window", String.valueOf(DEFAULT_SEARCH_RANK_WINDOW)));
+            this.presenceCoalesceMs = Long.parseLong(prop.getProperty("server.presence.coalesce.ms", String.valueOf(DEFAULT_PRESENCE_COALESCE_MS)));
+            this.inboxMaxPerUser = Integer.parseInt(prop.getProperty("server.inbox.max.per.user", String.valueOf(DEFAULT_INBOX_MAX_PER_USER)));
+            this.sessionTtlMinutes = Long.parseLong(prop.getProperty("server.session.ttl.minutes", String.valueOf(DEFAULT_SESSION_TTL_MINUTES)));
+            this.sessionPersist = Boolean.parseBoolean(prop.getProperty("server.session.persist", "true"));
+            this.sessionCatchUpMax = Integer.parseInt(prop.getProperty("server.session.catchup.max", String.valueOf(DEFAULT_SESSION_CATCHUP_MAX)));
+            this.maxRooms = Integer.parseInt(prop.getProperty("server.rooms.max", String.valueOf(DEFAULT_MAX_ROOMS)));
+            this.roomHistoryCapacity = Integer.parseInt(prop.getProperty("server.rooms.history.capacity", String.valueOf(DEFAULT_ROOM_HISTORY_CAPACITY)));
+            this.roomFanoutThreads = Integer.parseInt(prop.getProperty("server.rooms.fanout.threads", String.valueOf(roomFanoutThreads)));
+            this.heartbeatIntervalMs = Long.parseLong(prop.getProperty("server.heartbeat.interval.ms", String.valueOf(DEFAULT_HEARTBEAT_INTERVAL_MS)));
+            this.idleTimeoutMs = Long.parseLong(prop.getProperty("server.idle.timeout.ms", String.valueOf(DEFAULT_IDLE_TIMEOUT_MS)));
+            this.idleTickMs = Math.max(1, Long.parseLong(prop.getProperty("server.idle.tick.ms", String.valueOf(DEFAULT_IDLE_TICK_MS))));
+            this.shutdownDrainTimeoutMs = Long.parseLong(prop.getProperty("server.shutdown.drain.timeout.ms", String.valueOf(DEFAULT_SHUTDOWN_DRAIN_TIMEOUT_MS)));
+            this.shutdownStorageTimeoutMs = Long.parseLong(prop.getProperty("server.shutdown.storage.timeout.ms", String.valueOf(DEFAULT_SHUTDOWN_STORAGE_TIMEOUT_MS)));
+            this.shutdownReconnectDelayMs = Long.parseLong(prop.getProperty("server.shutdown.reconnect.delay.ms", String.valueOf(DEFAULT_SHUTDOWN_RECONNECT_DELAY_MS)));
+            this.binaryProtocolEnabled = Boolean.parseBoolean(prop.getProperty("server.protocol.binary.enabled", "true"));
+            this.clusterPort = Integer.parseInt(prop.getProperty("server.cluster.port", "0"));
+            this.clusterNodeId = prop.getProperty("server.cluster.node.id", "node-" + port);
+            this.clusterBind = prop.getProperty("server.cluster.bind", DEFAULT_CLUSTER_BIND);
+            this.clusterPeers = prop.getProperty("server.cluster.peers", "");
+            this.clusterSecret = prop.getProperty("server.cluster.secret", "");
+            this.clusterQueueSize = Integer.parseInt(prop.getProperty("server.cluster.queue.size", String.valueOf(DEFAULT_CLUSTER_QUEUE_SIZE)));
+            this.retransmitBufferSize = Integer.parseInt(prop.getProperty("server.retransmit.buffer.size", String.valueOf(DEFAULT_RETRANSMIT_BUFFER_SIZE)));
         } catch (IOException e) {
             this.port = 8189;
         }
     }
+
+    // Ошибка во внешнем файле не должна молча откатывать узел к встроенным настройкам
+    private static void loadExternalConfig(Properties prop, String configPath) {
+        try (Reader reader = Files.newBufferedReader(Path.of(configPath), StandardCharsets.UTF_8)) {
+            prop.load(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read server config " + configPath, e);
+        }
+        LOGGER.info("Loaded server config from {}", configPath);
+    }
 }
\ No newline at end of file
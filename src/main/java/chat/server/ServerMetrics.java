@@ -0,0 +1,72 @@
+package chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Счётчики сервера. Доступны через JMX как chat.server:type=Metrics (например, в jconsole)
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServerMetrics.class);
+    private static final String OBJECT_NAME = "chat.server:type=Metrics";
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private volatile Supplier<Map<String, Long>> deliveryLag = Map::of;
+    private volatile LongSupplier persistQueueDepth = () -> 0;
+
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+
+    // Считается в момент запроса: по клиенту, сколько миллисекунд ждёт ACK самое старое сообщение
+    @Override
+    public Map<String, Long> getDeliveryLagMs() {
+        return deliveryLag.get();
+    }
+
+    public void setDeliveryLagSource(Supplier<Map<String, Long>> source) {
+        this.deliveryLag = source;
+    }
+
+    // Сообщения, принятые сервером, но ещё не записанные в базу: растёт, если запись не успевает за чатом
+    @Override
+    public long getPersistQueueDepth() {
+        return persistQueueDepth.getAsLong();
+    }
+
+    public void setPersistQueueDepthSource(LongSupplier source) {
+        this.persistQueueDepth = source;
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register metrics MBean {}", OBJECT_NAME, e);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package chat.server;
+
+import java.util.Map;
+
+public interface ServerMetricsMXBean {
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getDeliveryLagMs();
+
+    long getPersistQueueDepth();
+}
@@ -0,0 +1,14 @@
+package chat.server;
+
+public enum ServerMode {
+    THREADS, // Поток на клиента из фиксированного пула
+    VIRTUAL, // Виртуальный поток на клиента, число клиентов ограничено только server.max.clients
+    NIO;     // Один селектор + небольшой пул обработчиков
+
+    public static ServerMode fromProperty(String value) {
+        if (value == null || value.isBlank()) {
+            return THREADS;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,232 @@
+package chat.server;
+
+import chat.server.db.SqliteConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Токены возобновления сессии. AUTH_OK выдаёт случайный токен, по которому переподключившийся клиент
+// входит командой RESUME без пароля и без хеширования. Пока соединение живо, сессия не истекает;
+// срок ttl отсчитывается с момента обрыва. Каждое возобновление выдаёт новый токен, старый сгорает.
+// В памяти и в базе хранится только SHA-256 токена; запись в базу идёт в фоне одним потоком,
+// поэтому вход её не ждёт, а порядок операций над одной сессией сохраняется.
+public class SessionStore implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionStore.class);
+    private static final int TOKEN_BYTES = 32;
+    private static final long ATTACHED = Long.MAX_VALUE;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private static final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS sessions (" +
+            "token_hash TEXT PRIMARY KEY," +
+            "login TEXT NOT NULL," +
+            "rooms TEXT NOT NULL DEFAULT ''," +
+            "expires_at INTEGER NOT NULL" +
+            ")";
+    private static final String SQL_DELETE_EXPIRED = "DELETE FROM sessions WHERE expires_at < ?";
+    // Сессии, которые были активны при остановке сервера, считаются оборвавшимися в момент запуска
+    private static final String SQL_DETACH_ALL = "UPDATE sessions SET expires_at = ? WHERE expires_at = " + ATTACHED;
+    private static final String SQL_LOAD = "SELECT token_hash, login, rooms, expires_at FROM sessions";
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO sessions(token_hash, login, rooms, expires_at) VALUES(?, ?, ?, ?)";
+    private static final String SQL_UPDATE_ROOMS = "UPDATE sessions SET rooms = ? WHERE token_hash = ?";
+    private static final String SQL_UPDATE_EXPIRY = "UPDATE sessions SET expires_at = ? WHERE token_hash = ?";
+    private static final String SQL_DELETE = "DELETE FROM sessions WHERE token_hash = ?";
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlMs;
+    private final SqliteConnectionManager db;
+    private final ScheduledExecutorService executor;
+
+    public static final class Session {
+        private final String username;
+        private volatile Set<String> rooms = Set.of();
+        private volatile long expiresAt = ATTACHED;
+
+        private Session(String username) {
+            this.username = username;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public Set<String> getRooms() {
+            return rooms;
+        }
+    }
+
+    // db = null — сессии только в памяти и не переживают перезапуск сервера
+    public SessionStore(SqliteConnectionManager db, long ttlMs) throws SQLException {
+        this.db = db;
+        this.ttlMs = ttlMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("session-store").factory());
+        if (db != null) {
+            load();
+        }
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void load() throws SQLException {
+        long now = System.currentTimeMillis();
+        db.write(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(SQL_CREATE);
+            }
+            PreparedStatement delete = connection.prepare(SQL_DELETE_EXPIRED);
+            delete.setLong(1, now);
+            delete.executeUpdate();
+            PreparedStatement detach = connection.prepare(SQL_DETACH_ALL);
+            detach.setLong(1, now + ttlMs);
+            detach.executeUpdate();
+            try (ResultSet rs = connection.prepare(SQL_LOAD).executeQuery()) {
+                while (rs.next()) {
+                    Session session = new Session(rs.getString("login"));
+                    session.expiresAt = rs.getLong("expires_at");
+                    String rooms = rs.getString("rooms");
+                    if (!rooms.isEmpty()) {
+                        session.rooms = Set.copyOf(Arrays.asList(rooms.split(",")));
+                    }
+                    sessions.put(rs.getString("token_hash"), session);
+                }
+            }
+            return null;
+        });
+        LOGGER.info("Loaded {} resumable sessions", sessions.size());
+    }
+
+    // Новая сессия для вошедшего пользователя; rooms — комнаты, в которых он уже состоит
+    public String open(String username, Set<String> rooms) {
+        byte[] raw = new byte[TOKEN_BYTES];
+        random.nextBytes(raw);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+        Session session = new Session(username);
+        session.rooms = Set.copyOf(rooms);
+        String key = hash(token);
+        sessions.put(key, session);
+        persist(SQL_INSERT, key, username, String.join(",", rooms), ATTACHED);
+        return token;
+    }
+
+    // Сессия забирается целиком: токен одноразовый, и два одновременных RESUME не получат её оба.
+    // null, если токен неизвестен или истёк
+    public Session resume(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        String key = hash(token);
+        Session session = sessions.remove(key);
+        if (session == null) {
+            return null;
+        }
+        persist(SQL_DELETE, key);
+        return session.expiresAt < System.currentTimeMillis() ? null : session;
+    }
+
+    // Возобновление не состоялось (логин занят на другом узле): токен снова действителен до прежнего срока
+    public void restore(String token, Session session) {
+        String key = hash(token);
+        if (sessions.putIfAbsent(key, session) == null) {
+            persist(SQL_INSERT, key, session.username, String.join(",", session.rooms), session.expiresAt);
+        }
+    }
+
+    public void updateRooms(String token, Set<String> rooms) {
+        String key = hash(token);
+        Session session = sessions.get(key);
+        if (session == null) {
+            return;
+        }
+        session.rooms = Set.copyOf(rooms);
+        persist(SQL_UPDATE_ROOMS, String.join(",", rooms), key);
+    }
+
+    // Соединение оборвалось: с этого момента идёт срок жизни сессии
+    public void detach(String token) {
+        String key = hash(token);
+        Session session = sessions.get(key);
+        if (session == null) {
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + ttlMs;
+        session.expiresAt = expiresAt;
+        persist(SQL_UPDATE_EXPIRY, expiresAt, key);
+    }
+
+    // Явный выход: сессию больше нельзя возобновить
+    public void revoke(String token) {
+        String key = hash(token);
+        if (sessions.remove(key) != null) {
+            persist(SQL_DELETE, key);
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expiresAt < now);
+        if (db != null) {
+            execute(SQL_DELETE_EXPIRED, now);
+        }
+    }
+
+    private void persist(String sql, Object... params) {
+        if (db == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> execute(sql, params));
+        } catch (RejectedExecutionException e) {
+            // Сервер останавливается: сессии этого соединения всё равно станут оборванными при следующем запуске
+        }
+    }
+
+    private void execute(String sql, Object... params) {
+        try {
+            db.write(connection -> {
+                PreparedStatement pstmt = connection.prepare(sql);
+                for (int i = 0; i < params.length; i++) {
+                    pstmt.setObject(i + 1, params[i]);
+                }
+                return pstmt.executeUpdate();
+            });
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to persist session change: {}", e.getMessage());
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Дожидается записи накопившихся изменений; вызывать до закрытия базы
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package chat.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Запись в сокет идёт в отдельном потоке: рассылка только кладёт кадр в очередь и не ждёт клиента
+public class SocketConnection implements ClientConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SocketConnection.class);
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final OutboundQueue queue;
+    private final String remoteAddress;
+
+    private volatile boolean closing = false;
+
+    public SocketConnection(Socket socket, OutboundQueue queue, ThreadFactory writerFactory) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.queue = queue;
+        this.remoteAddress = String.valueOf(socket.getInetAddress());
+        writerFactory.newThread(this::writeLoop).start();
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                byte[] frame = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    if (closing) {
+                        break;
+                    }
+                    continue;
+                }
+                out.write(frame);
+                // Пока в очереди есть кадры, копим их в буфере и сбрасываем одним пакетом
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.debug("Writer for {} stopped: {}", remoteAddress, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queue.clear();
+            closeSocket();
+        }
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        if (closing) {
+            return;
+        }
+        String evictionReason = queue.offer(frame);
+        if (evictionReason != null) {
+            LOGGER.warn("Disconnecting slow client {}: {}", remoteAddress, evictionReason);
+            closing = true;
+            closeSocket();
+        }
+    }
+
+    // Закрытие после отправки всего, что уже стоит в очереди
+    @Override
+    public void close() {
+        closing = true;
+    }
+
+    // Закрытый сокет прерывает и чтение в потоке клиента, и зависшую запись
+    @Override
+    public void abort() {
+        closing = true;
+        closeSocket();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
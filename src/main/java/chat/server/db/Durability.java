@@ -0,0 +1,13 @@
+package chat.server.db;
+
+public enum Durability {
+    ASYNC,  // Сообщение рассылается сразу, запись в базу идёт в фоне
+    COMMIT; // Сообщение рассылается только после фиксации транзакции с ним
+
+    public static Durability fromProperty(String value) {
+        if (value == null || value.isBlank()) {
+            return ASYNC;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,138 @@
+package chat.server.db;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Личные сообщения для пользователей не в сети. Забираются одной транзакцией при следующем входе
+// и сразу удаляются, так что каждое сообщение доставляется ровно один раз. Сюда же возвращаются
+// личные сообщения, доставку которых клиент не подтвердил до обрыва: id сохраняется, и клиент
+// отбросит повтор того, что всё-таки успел получить.
+public class InboxStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InboxStore.class);
+    private static final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS inbox (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "recipient TEXT NOT NULL," +
+            "sender TEXT NOT NULL," +
+            "message TEXT NOT NULL," +
+            "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP," +
+            "message_id INTEGER," +
+            "time INTEGER" +
+            ")";
+    private static final String SQL_CREATE_INDEX = "CREATE INDEX IF NOT EXISTS idx_inbox_recipient_id ON inbox(recipient, id)";
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM inbox WHERE recipient = ?";
+    // Сообщение для несуществующего логина не сохраняется: вставка вернёт 0 строк
+    private static final String SQL_INSERT = "INSERT INTO inbox(recipient, sender, message, message_id, time) " +
+            "SELECT ?, ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM users WHERE login = ?)";
+    private static final String SQL_SELECT = "SELECT id, sender, message, timestamp, message_id, time FROM inbox WHERE recipient = ? ORDER BY id";
+    private static final String SQL_DELETE = "DELETE FROM inbox WHERE recipient = ? AND id <= ?";
+
+    public enum SaveResult { SAVED, UNKNOWN_RECIPIENT, INBOX_FULL, FAILED }
+
+    private final SqliteConnectionManager db;
+    private final int maxPerRecipient;
+
+    public InboxStore(SqliteConnectionManager db, int maxPerRecipient) throws SQLException {
+        this.db = db;
+        this.maxPerRecipient = maxPerRecipient;
+        db.write(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(SQL_CREATE);
+                statement.execute(SQL_CREATE_INDEX);
+                // Старые базы создавались без id и времени сообщения
+                boolean hasMessageId = false;
+                try (ResultSet rs = statement.executeQuery("PRAGMA table_info(inbox)")) {
+                    while (rs.next()) {
+                        hasMessageId |= "message_id".equals(rs.getString("name"));
+                    }
+                }
+                if (!hasMessageId) {
+                    statement.execute("ALTER TABLE inbox ADD COLUMN message_id INTEGER");
+                    statement.execute("ALTER TABLE inbox ADD COLUMN time INTEGER");
+                }
+            }
+            return null;
+        });
+    }
+
+    public SaveResult save(String recipient, String sender, String message, long messageId, long time) {
+        try {
+            return db.write(connection -> {
+                PreparedStatement count = connection.prepare(SQL_COUNT);
+                count.setString(1, recipient);
+                try (ResultSet rs = count.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) >= maxPerRecipient) {
+                        return SaveResult.INBOX_FULL;
+                    }
+                }
+                PreparedStatement insert = connection.prepare(SQL_INSERT);
+                insert.setString(1, recipient);
+                insert.setString(2, sender);
+                insert.setString(3, message);
+                insert.setLong(4, messageId);
+                insert.setLong(5, time);
+                insert.setString(6, recipient);
+                return insert.executeUpdate() == 0 ? SaveResult.UNKNOWN_RECIPIENT : SaveResult.SAVED;
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to save private message for {}", recipient, e);
+            return SaveResult.FAILED;
+        }
+    }
+
+    // Выборка и удаление под одним замком писателя: параллельный вызов не получит те же сообщения
+    public List<Message> takeAll(String recipient) {
+        List<Message> messages = new ArrayList<>();
+        try {
+            db.write(connection -> {
+                Connection jdbc = connection.getConnection();
+                jdbc.setAutoCommit(false);
+                try {
+                    long lastId = 0;
+                    PreparedStatement select = connection.prepare(SQL_SELECT);
+                    select.setString(1, recipient);
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            Message message = new Message(CommandType.PRIVATE_MESSAGE, rs.getString("sender"),
+                                    rs.getString("message"), rs.getString("timestamp"));
+                            message.setRecipient(recipient);
+                            long messageId = rs.getLong("message_id");
+                            if (!rs.wasNull()) {
+                                message.setId(messageId);
+                                message.setTime(rs.getLong("time"));
+                            }
+                            messages.add(message);
+                            lastId = rs.getLong("id");
+                        }
+                    }
+                    if (lastId > 0) {
+                        PreparedStatement delete = connection.prepare(SQL_DELETE);
+                        delete.setString(1, recipient);
+                        delete.setLong(2, lastId);
+                        delete.executeUpdate();
+                    }
+                    jdbc.commit();
+                } catch (SQLException e) {
+                    jdbc.rollback();
+                    throw e;
+                } finally {
+                    jdbc.setAutoCommit(true);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            LOGGER.error("Failed to load inbox for {}", recipient, e);
+            messages.clear();
+        }
+        return messages;
+    }
+}
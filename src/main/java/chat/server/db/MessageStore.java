@@ -0,0 +1,193 @@
+package chat.server.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Отложенная запись истории: сообщения копятся в очереди, и отдельный поток сохраняет их
+// пачками — одна транзакция на batchSize строк или на batchDelayMs миллисекунд.
+public class MessageStore implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageStore.class);
+    private static final String SQL_INSERT_MESSAGE = "INSERT INTO messages(id, room, sender, message, time) VALUES(?, ?, ?, ?, ?)";
+    private static final String SQL_MAX_ID = "SELECT COALESCE(MAX(id), 0) FROM messages";
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final long IDLE_POLL_MS = 100;
+    // Сколько отправитель ждёт места в переполненной очереди, прежде чем сообщение будет отклонено
+    private static final long OFFER_TIMEOUT_MS = 1000;
+
+    private final SqliteConnectionManager db;
+    private final Durability durability;
+    private final int batchSize;
+    private final long batchDelayMs;
+    private final BlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    // id назначается сразу при рассылке, ещё до записи в базу
+    private final AtomicLong lastId;
+
+    private volatile boolean running = true;
+
+    public MessageStore(SqliteConnectionManager db, Durability durability, int batchSize, long batchDelayMs) throws SQLException {
+        this.db = db;
+        this.lastId = new AtomicLong(db.read(connection -> {
+            try (ResultSet rs = connection.prepare(SQL_MAX_ID).executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }));
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.batchDelayMs = batchDelayMs;
+        this.writerThread = new Thread(this::writeLoop, "message-writer");
+        this.writerThread.start();
+    }
+
+    public long nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    // Завершается после фиксации транзакции с этим сообщением. Если сообщение не принято в очередь,
+    // будущее уже завершено с ошибкой к моменту возврата. Будущее завершает поток записи: тяжёлую
+    // работу и замки в обработчиках выносить на свой исполнитель
+    public CompletableFuture<Void> append(long id, String room, String sender, String message, long time) {
+        PendingMessage pending = new PendingMessage(id, room, sender, message, time);
+        if (!running) {
+            pending.done.completeExceptionally(new IllegalStateException("Message store is closed"));
+            return pending.done;
+        }
+        try {
+            // Очередь переполняется, только если диск не успевает за чатом: тогда притормаживаем
+            // отправителя, но не бесконечно — он может держать замок рассылки
+            if (!queue.offer(pending, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Message queue is full ({} pending), message {} rejected", queue.size(), id);
+                pending.done.completeExceptionally(new IllegalStateException("Message queue is full"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.done.completeExceptionally(e);
+        }
+        return pending.done;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private void writeLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        try {
+            while (running || !queue.isEmpty()) {
+                PendingMessage first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelayMs);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingMessage next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.drainTo(batch);
+            writeBatch(batch);
+        }
+    }
+
+    private void writeBatch(List<PendingMessage> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            db.write(connection -> {
+                Connection jdbc = connection.getConnection();
+                jdbc.setAutoCommit(false);
+                try {
+                    PreparedStatement pstmt = connection.prepare(SQL_INSERT_MESSAGE);
+                    for (PendingMessage pending : batch) {
+                        pstmt.setLong(1, pending.id);
+                        pstmt.setString(2, pending.room);
+                        pstmt.setString(3, pending.sender);
+                        pstmt.setString(4, pending.message);
+                        pstmt.setLong(5, pending.time);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                    jdbc.commit();
+                } catch (SQLException e) {
+                    jdbc.rollback();
+                    throw e;
+                } finally {
+                    jdbc.setAutoCommit(true);
+                }
+                return null;
+            });
+            for (PendingMessage pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Failed to save {} messages to history", batch.size(), e);
+            for (PendingMessage pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Дописывает всё, что уже стоит в очереди, и останавливает поток записи
+    @Override
+    public void close() {
+        close(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    public boolean close(long timeoutMs) {
+        running = false;
+        try {
+            writerThread.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            LOGGER.warn("Message store did not flush in {} ms, {} messages pending", timeoutMs, queue.size());
+            return false;
+        }
+        LOGGER.info("Message store flushed");
+        return true;
+    }
+
+    private static class PendingMessage {
+        private final long id;
+        private final String room;
+        private final String sender;
+        private final String message;
+        private final long time;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private PendingMessage(long id, String room, String sender, String message, long time) {
+            this.id = id;
+            this.room = room;
+            this.sender = sender;
+            this.message = message;
+            this.time = time;
+        }
+    }
+}
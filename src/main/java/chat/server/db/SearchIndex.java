@@ -0,0 +1,268 @@
+package chat.server.db;
+
+import chat.common.CommandType;
+import chat.common.Message;
+import chat.common.SearchPage;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Полнотекстовый индекс по messages на FTS5. Новые строки попадают в индекс триггерами в той же
+// транзакции, что и запись пачки, а строки, существовавшие до создания индекса, дозаливаются
+// фоновым потоком небольшими порциями, чтобы не держать замок писателя надолго.
+public class SearchIndex implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndex.class);
+
+    private static final String SQL_CREATE_FTS = "CREATE VIRTUAL TABLE IF NOT EXISTS messages_fts USING fts5(" +
+            "sender, message, content='messages', content_rowid='id', tokenize='unicode61 remove_diacritics 2')";
+    private static final String SQL_CREATE_META = "CREATE TABLE IF NOT EXISTS search_meta (" +
+            "key TEXT PRIMARY KEY," +
+            "value INTEGER NOT NULL" +
+            ")";
+    private static final String[] SQL_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_ai AFTER INSERT ON messages BEGIN " +
+                    "INSERT INTO messages_fts(rowid, sender, message) VALUES (new.id, new.sender, new.message); END",
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_ad AFTER DELETE ON messages BEGIN " +
+                    "INSERT INTO messages_fts(messages_fts, rowid, sender, message) VALUES ('delete', old.id, old.sender, old.message); END",
+            "CREATE TRIGGER IF NOT EXISTS messages_fts_au AFTER UPDATE ON messages BEGIN " +
+                    "INSERT INTO messages_fts(messages_fts, rowid, sender, message) VALUES ('delete', old.id, old.sender, old.message); " +
+                    "INSERT INTO messages_fts(rowid, sender, message) VALUES (new.id, new.sender, new.message); END",
+    };
+    private static final String SQL_TABLE_EXISTS = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'messages_fts'";
+    private static final String SQL_MAX_ID = "SELECT COALESCE(MAX(id), 0) FROM messages";
+    private static final String SQL_GET_META = "SELECT value FROM search_meta WHERE key = ?";
+    private static final String SQL_PUT_META = "INSERT OR REPLACE INTO search_meta(key, value) VALUES(?, ?)";
+    private static final String SQL_BACKFILL = "INSERT INTO messages_fts(rowid, sender, message) " +
+            "SELECT id, sender, message FROM messages WHERE id > ? AND id <= ? ORDER BY id LIMIT ?";
+    private static final String SQL_BACKFILL_CURSOR = "SELECT MAX(id) FROM (SELECT id FROM messages WHERE id > ? AND id <= ? ORDER BY id LIMIT ?)";
+    // Ранжирование по bm25 (меньше rank — лучше) только среди rankWindow самых новых совпадений:
+    // FTS5 отдаёт совпадения по rowid потоком, а оценка всех совпадений частого слова на миллионах
+    // строк стоила бы секунды. Снипеты строятся отдельно и только для строк страницы.
+    // Индекс покрывает и комнаты, поэтому совпадения ограничены общим чатом и комнатами, в которых
+    // состоит ищущий (JSON-массив имён)
+    private static final String SQL_SEARCH_IDS = "SELECT id FROM (" +
+            "SELECT messages_fts.rowid AS id, messages_fts.rank AS score FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid " +
+            "WHERE messages_fts MATCH ? AND (m.room IS NULL OR m.room IN (SELECT value FROM json_each(?))) " +
+            "ORDER BY messages_fts.rowid DESC LIMIT ?) " +
+            "ORDER BY score LIMIT ? OFFSET ?";
+    private static final String SQL_SEARCH_HIT = "SELECT m.sender, m.room, m.timestamp, " +
+            "snippet(messages_fts, 1, '**', '**', '…', 12) AS snippet " +
+            "FROM messages_fts JOIN messages m ON m.id = messages_fts.rowid " +
+            "WHERE messages_fts MATCH ? AND messages_fts.rowid = ?";
+
+    private static final String META_BACKFILL_UPTO = "backfill_upto";
+    private static final String META_BACKFILL_DONE = "backfill_done";
+
+    private static final Gson GSON = new Gson();
+
+    private final SqliteConnectionManager db;
+    private final int backfillBatchSize;
+    private final long backfillPauseMs;
+    private final int rankWindow;
+    private Thread backfillThread;
+
+    private volatile boolean running = true;
+
+    public SearchIndex(SqliteConnectionManager db, int backfillBatchSize, long backfillPauseMs, int rankWindow) throws SQLException {
+        this.db = db;
+        this.rankWindow = rankWindow;
+        this.backfillBatchSize = backfillBatchSize;
+        this.backfillPauseMs = backfillPauseMs;
+        db.write(connection -> {
+            boolean created;
+            try (ResultSet rs = connection.prepare(SQL_TABLE_EXISTS).executeQuery()) {
+                created = !rs.next();
+            }
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(SQL_CREATE_FTS);
+                statement.execute(SQL_CREATE_META);
+                for (String trigger : SQL_TRIGGERS) {
+                    statement.execute(trigger);
+                }
+            }
+            // Граница фиксируется под тем же замком, что и создание триггеров: всё, что выше неё,
+            // проиндексируют триггеры, всё, что ниже, — фоновая дозаливка
+            if (created) {
+                long maxId;
+                try (ResultSet rs = connection.prepare(SQL_MAX_ID).executeQuery()) {
+                    maxId = rs.next() ? rs.getLong(1) : 0L;
+                }
+                putMeta(connection, META_BACKFILL_UPTO, maxId);
+                putMeta(connection, META_BACKFILL_DONE, 0);
+                LOGGER.info("Search index created, {} existing messages to backfill", maxId);
+            }
+            return null;
+        });
+    }
+
+    public void startBackfill() {
+        backfillThread = new Thread(this::backfillLoop, "search-backfill");
+        backfillThread.setDaemon(true);
+        backfillThread.start();
+    }
+
+    // Синхронная дозаливка: для бенчмарка и утилит
+    public void backfill() {
+        backfillLoop();
+    }
+
+    private void backfillLoop() {
+        try {
+            long upTo = db.read(connection -> getMeta(connection, META_BACKFILL_UPTO));
+            long done = db.read(connection -> getMeta(connection, META_BACKFILL_DONE));
+            if (done >= upTo) {
+                return;
+            }
+            long started = System.nanoTime();
+            while (running && done < upTo) {
+                long from = done;
+                // Одна порция — одна короткая транзакция; между порциями замок свободен для MessageStore
+                long next = db.write(connection -> {
+                    long to = upTo;
+                    PreparedStatement select = connection.prepare(SQL_BACKFILL_CURSOR);
+                    select.setLong(1, from);
+                    select.setLong(2, upTo);
+                    select.setInt(3, backfillBatchSize);
+                    try (ResultSet rs = select.executeQuery()) {
+                        if (rs.next() && rs.getLong(1) > 0) {
+                            to = rs.getLong(1);
+                        }
+                    }
+                    Connection jdbc = connection.getConnection();
+                    jdbc.setAutoCommit(false);
+                    try {
+                        PreparedStatement insert = connection.prepare(SQL_BACKFILL);
+                        insert.setLong(1, from);
+                        insert.setLong(2, to);
+                        insert.setInt(3, backfillBatchSize);
+                        insert.executeUpdate();
+                        putMeta(connection, META_BACKFILL_DONE, to);
+                        jdbc.commit();
+                    } catch (SQLException e) {
+                        jdbc.rollback();
+                        throw e;
+                    } finally {
+                        jdbc.setAutoCommit(true);
+                    }
+                    return to;
+                });
+                done = next;
+                if (backfillPauseMs > 0) {
+                    Thread.sleep(backfillPauseMs);
+                }
+            }
+            if (done >= upTo) {
+                LOGGER.info("Search backfill finished up to id {} in {} ms", upTo, (System.nanoTime() - started) / 1_000_000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            LOGGER.error("Search backfill failed, will resume on next start", e);
+        }
+    }
+
+    // Окно ранжирования уже отсортировано в памяти, поэтому OFFSET здесь не дороже первой страницы;
+    // глубину листания ограничивает вызывающий код. rooms — комнаты ищущего
+    public SearchPage search(String query, Collection<String> rooms, int offset, int limit) throws SQLException {
+        String match = toMatchExpression(query);
+        String roomsJson = GSON.toJson(rooms);
+        List<Message> results = new ArrayList<>(limit);
+        if (match.isEmpty()) {
+            return new SearchPage(query, offset, results, false);
+        }
+        db.read(connection -> {
+            List<Long> ids = new ArrayList<>(limit + 1);
+            PreparedStatement pstmt = connection.prepare(SQL_SEARCH_IDS);
+            pstmt.setString(1, match);
+            pstmt.setString(2, roomsJson);
+            pstmt.setInt(3, rankWindow);
+            // Берём на одну строку больше, чтобы узнать, есть ли следующая страница
+            pstmt.setInt(4, limit + 1);
+            pstmt.setInt(5, offset);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            PreparedStatement hit = connection.prepare(SQL_SEARCH_HIT);
+            for (long id : ids) {
+                hit.setString(1, match);
+                hit.setLong(2, id);
+                try (ResultSet rs = hit.executeQuery()) {
+                    if (rs.next()) {
+                        String room = rs.getString("room");
+                        Message message = new Message(room == null ? CommandType.PUBLIC_MESSAGE : CommandType.ROOM_MESSAGE,
+                                rs.getString("sender"), rs.getString("snippet"), rs.getString("timestamp"));
+                        message.setId(id);
+                        message.setRoom(room);
+                        results.add(message);
+                    }
+                }
+            }
+            return null;
+        });
+        boolean hasMore = results.size() > limit;
+        if (hasMore) {
+            results.remove(results.size() - 1);
+        }
+        return new SearchPage(query, offset, results, hasMore);
+    }
+
+    // Пользовательский ввод не передаём в MATCH как есть: каждое слово берём в кавычки, чтобы
+    // операторы FTS5 и непарные кавычки не ломали запрос. Слова объединяются через AND,
+    // звёздочка в конце слова оставляется как поиск по префиксу.
+    static String toMatchExpression(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String term : query.trim().split("\\s+")) {
+            boolean prefix = term.endsWith("*");
+            String word = term.replace("*", "").replace("\"", "\"\"");
+            if (word.isBlank()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append('"');
+            if (prefix) {
+                match.append('*');
+            }
+        }
+        return match.toString();
+    }
+
+    private static long getMeta(PooledConnection connection, String key) throws SQLException {
+        PreparedStatement pstmt = connection.prepare(SQL_GET_META);
+        pstmt.setString(1, key);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    private static void putMeta(PooledConnection connection, String key, long value) throws SQLException {
+        PreparedStatement pstmt = connection.prepare(SQL_PUT_META);
+        pstmt.setString(1, key);
+        pstmt.setLong(2, value);
+        pstmt.executeUpdate();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (backfillThread != null) {
+            try {
+                backfillThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
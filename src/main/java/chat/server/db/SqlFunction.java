@@ -0,0 +1,8 @@
+package chat.server.db;
+
+import java.sql.SQLException;
+
+@FunctionalInterface
+public interface SqlFunction<T> {
+    T apply(PooledConnection connection) throws SQLException;
+}
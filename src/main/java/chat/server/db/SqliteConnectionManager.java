@@ -0,0 +1,89 @@
+package chat.server.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SQLite допускает только одного писателя, поэтому все записи идут через одно соединение
+// под замком, а чтения — через пул соединений только для чтения. В режиме WAL читатели
+// не блокируются писателем, и файл базы не открывается заново на каждый запрос.
+public class SqliteConnectionManager implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqliteConnectionManager.class);
+    private static final int BUSY_TIMEOUT_MS = 5000;
+
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> allReaders = new ArrayList<>();
+
+    public SqliteConnectionManager(String url, int readerCount, int cacheSizeKb) throws SQLException {
+        SQLiteConfig writerConfig = baseConfig(cacheSizeKb);
+        writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // В WAL режим NORMAL не теряет целостность, а fsync делается только на контрольных точках
+        writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        this.writer = new PooledConnection(writerConfig.createConnection(url));
+
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            SQLiteConfig readerConfig = baseConfig(cacheSizeKb);
+            readerConfig.setReadOnly(true);
+            PooledConnection reader = new PooledConnection(readerConfig.createConnection(url));
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+        LOGGER.info("SQLite pool opened: 1 writer, {} readers, cache {} KB", readerCount, cacheSizeKb);
+    }
+
+    private static SQLiteConfig baseConfig(int cacheSizeKb) {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+        // Отрицательное значение cache_size задаётся в килобайтах, а не в страницах
+        config.setCacheSize(-cacheSizeKb);
+        config.setTempStore(SQLiteConfig.TempStore.MEMORY);
+        return config;
+    }
+
+    public <T> T write(SqlFunction<T> work) throws SQLException {
+        writeLock.lock();
+        try {
+            return work.apply(writer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public <T> T read(SqlFunction<T> work) throws SQLException {
+        PooledConnection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+        try {
+            return work.apply(reader);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writeLock.unlock();
+        }
+        for (PooledConnection reader : allReaders) {
+            reader.close();
+        }
+    }
+}
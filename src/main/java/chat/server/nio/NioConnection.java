@@ -0,0 +1,235 @@
+package chat.server.nio;
+
+import chat.common.Message;
+import chat.common.codec.MessageCodec;
+import chat.server.ClientHandler;
+import chat.server.ClientConnection;
+import chat.server.OutboundQueue;
+import chat.server.ServerApp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioConnection implements ClientConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioConnection.class);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final NioServer nioServer;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Executor workers;
+    private final ClientHandler handler;
+    private final String remoteAddress;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final OutboundQueue writeQueue;
+    private ByteBuffer currentWrite;
+    private final Queue<Message> inbox = new ConcurrentLinkedQueue<>();
+    // Ответы других пулов (например, проверка пароля), выполняемые в порядке обработки соединения
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean processing = new AtomicBoolean(false);
+    final AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+    private volatile boolean closeRequested = false;
+    private volatile boolean abortRequested = false;
+    private volatile boolean disconnected = false;
+    // Обрыв уже передан обработчику; меняется только потоком, владеющим processing
+    private boolean disconnectHandled = false;
+
+    NioConnection(NioServer nioServer, ServerApp server, SocketChannel channel, SelectionKey key, Executor workers) {
+        this.nioServer = nioServer;
+        this.channel = channel;
+        this.key = key;
+        this.workers = workers;
+        this.remoteAddress = String.valueOf(channel.socket().getInetAddress());
+        this.writeQueue = server.newOutboundQueue();
+        this.handler = new ClientHandler(server, this);
+    }
+
+    // Вызывается только из потока селектора
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new IOException("End of stream");
+        }
+
+        readBuffer.flip();
+        MessageCodec codec = handler.getCodec();
+        Message message;
+        // Формат меняется только после AUTH_OK, а клиент переходит на него, лишь получив этот ответ
+        while ((message = codec.decode(readBuffer)) != null) {
+            inbox.add(message);
+            codec = handler.getCodec();
+        }
+        readBuffer.compact();
+
+        int maxFrameSize = codec.getMaxFrameSize();
+        if (!readBuffer.hasRemaining() && readBuffer.capacity() < maxFrameSize) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, maxFrameSize));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        if (!inbox.isEmpty()) {
+            scheduleProcessing();
+        }
+    }
+
+    // Вызывается только из потока селектора
+    void onWritable() throws IOException {
+        while (true) {
+            if (currentWrite == null) {
+                byte[] frame = writeQueue.poll();
+                if (frame == null) {
+                    break;
+                }
+                currentWrite = ByteBuffer.wrap(frame);
+            }
+            channel.write(currentWrite);
+            if (currentWrite.hasRemaining()) {
+                return;
+            }
+            currentWrite = null;
+        }
+        if (closeRequested) {
+            closeChannel();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Вызывается только из потока селектора
+    void onWriteRequested() {
+        if (!key.isValid()) {
+            return;
+        }
+        if (abortRequested) {
+            onDisconnected();
+            return;
+        }
+        if (closeRequested && writeQueue.isEmpty() && currentWrite == null) {
+            closeChannel();
+            return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    // Вызывается только из потока селектора при обрыве соединения
+    void onDisconnected() {
+        closeChannel();
+        disconnected = true;
+        scheduleProcessing();
+    }
+
+    ClientHandler getHandler() {
+        return handler;
+    }
+
+    private void scheduleProcessing() {
+        if (processing.compareAndSet(false, true)) {
+            workers.execute(this::processInbox);
+        }
+    }
+
+    // Кадры одного соединения обрабатываются строго по очереди, но на общем пуле. Пока обработчик
+    // ждёт ответа на вход, следующие кадры остаются в очереди
+    private void processInbox() {
+        do {
+            while (true) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    Message message = handler.isAwaitingAuth() ? null : inbox.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    task = () -> handler.handle(message);
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Failed to handle message from {}", remoteAddress, e);
+                }
+                if (!handler.isRunning()) {
+                    handler.closeConnection();
+                    inbox.clear();
+                }
+            }
+            if (disconnected && !disconnectHandled) {
+                disconnectHandled = true;
+                LOGGER.warn("Client {} disconnected", remoteAddress);
+                handler.closeConnection();
+            }
+            processing.set(false);
+            // Обрыв или ответ мог прийти после проверки выше, но до сброса processing: тогда
+            // запланировать обработку не удалось, и сделать её должны мы
+        } while (hasWork() && processing.compareAndSet(false, true));
+    }
+
+    private boolean hasWork() {
+        return !tasks.isEmpty()
+                || (!inbox.isEmpty() && !handler.isAwaitingAuth())
+                || (disconnected && !disconnectHandled);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        scheduleProcessing();
+    }
+
+    @Override
+    public void send(byte[] frame) {
+        if (closeRequested || !channel.isOpen()) {
+            return;
+        }
+        String evictionReason = writeQueue.offer(frame);
+        if (evictionReason != null) {
+            LOGGER.warn("Disconnecting slow client {}: {}", remoteAddress, evictionReason);
+            closeRequested = true;
+            abortRequested = true;
+        }
+        nioServer.requestWrite(this);
+    }
+
+    @Override
+    public void close() {
+        closeRequested = true;
+        nioServer.requestWrite(this);
+    }
+
+    @Override
+    public void abort() {
+        closeRequested = true;
+        abortRequested = true;
+        nioServer.requestWrite(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    private void closeChannel() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        writeQueue.clear();
+        currentWrite = null;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
@@ -0,0 +1,162 @@
+package chat.server.nio;
+
+import chat.server.ServerApp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioServer.class);
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final ServerApp server;
+    private final int port;
+    private final ExecutorService workers;
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Thread selectorThread;
+
+    public NioServer(ServerApp server, int port, int workerCount) {
+        this.server = server;
+        this.port = port;
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread thread = new Thread(task, "nio-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            this.serverChannel = serverChannel;
+            this.selectorThread = Thread.currentThread();
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                processPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        handleIo(key);
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!server.tryAdmit()) {
+                reject(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(this, server, channel, key, workers);
+            key.attach(connection);
+            // Регистрируется уже построенное соединение: из конструктора ссылка на него не уходит
+            server.connected(connection.getHandler());
+            LOGGER.info("Client connected: {}", connection.getRemoteAddress());
+        }
+    }
+
+    private void reject(SocketChannel channel) {
+        LOGGER.warn("Connection limit reached, rejecting {}", channel.socket().getInetAddress());
+        try (channel) {
+            channel.write(ByteBuffer.wrap(server.getRejectionFrame()));
+        } catch (IOException e) {
+        }
+    }
+
+    private void handleIo(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException e) {
+            connection.onDisconnected();
+        }
+    }
+
+    private void processPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.writeRequested.set(false);
+            connection.onWriteRequested();
+        }
+    }
+
+    // Новые соединения больше не принимаются, открытые обслуживаются дальше, пока их очереди не опустеют
+    public void stopAccepting() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            selector.wakeup();
+        }
+    }
+
+    // Останавливает селектор и ждёт, пока обработчики доделают начатое
+    public void stop(long timeoutMs) {
+        Thread thread = selectorThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("NIO workers did not finish before the shutdown deadline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Может вызываться из любого потока: интерес к записи меняется только в потоке селектора
+    void requestWrite(NioConnection connection) {
+        if (connection.writeRequested.compareAndSet(false, true)) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+    }
+}
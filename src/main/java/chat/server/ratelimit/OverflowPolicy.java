@@ -0,0 +1,14 @@
+package chat.server.ratelimit;
+
+public enum OverflowPolicy {
+    REJECT,     // Запрос отклоняется с ошибкой, соединение остаётся
+    DELAY,      // Обработка откладывается до появления токена (не дольше server.ratelimit.max.delay.ms)
+    DISCONNECT; // Клиент отключается
+
+    public static OverflowPolicy fromProperty(String value) {
+        if (value == null || value.isBlank()) {
+            return REJECT;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,135 @@
+package chat.server.ratelimit;
+
+import chat.server.ServerMetrics;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+// Ограничение частоты по классам команд. Для каждого класса задаются скорость, размер
+// всплеска и политика переполнения:
+//   server.ratelimit.<auth|register|resume|chat>.rate / .burst / .policy
+// Вёдра входа, регистрации и возобновления общие для всех соединений с одного IP (вход — ещё
+// и на логин), ведро чата принадлежит пользователю и переживает переподключение. Полные вёдра
+// периодически выбрасываются: полное ведро ничем не отличается от нового.
+public class RateLimiter {
+    public enum Kind { AUTH, REGISTER, RESUME, CHAT }
+
+    public enum Verdict { ALLOW, REJECT, DISCONNECT }
+
+    private static final long CLEANUP_INTERVAL_SECONDS = 60;
+
+    private final Map<Kind, Limit> limits = new EnumMap<>(Kind.class);
+    private final Map<Kind, ConcurrentHashMap<String, TokenBucket>> byAddress = new EnumMap<>(Kind.class);
+    private final ConcurrentHashMap<String, TokenBucket> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> byUser = new ConcurrentHashMap<>();
+    private final Map<Kind, Function<String, TokenBucket>> bucketFactories = new EnumMap<>(Kind.class);
+    private final long maxDelayNanos;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService cleaner;
+
+    public RateLimiter(Properties config, ServerMetrics metrics) {
+        this.metrics = metrics;
+        limits.put(Kind.AUTH, Limit.from(config, Kind.AUTH, 1.0, 10, OverflowPolicy.REJECT));
+        limits.put(Kind.REGISTER, Limit.from(config, Kind.REGISTER, 0.2, 3, OverflowPolicy.REJECT));
+        // Возобновление дешевле входа, а после рестарта сервера переподключаются все разом
+        limits.put(Kind.RESUME, Limit.from(config, Kind.RESUME, 5.0, 20, OverflowPolicy.REJECT));
+        limits.put(Kind.CHAT, Limit.from(config, Kind.CHAT, 2.0, 5, OverflowPolicy.REJECT));
+        for (Kind kind : Kind.values()) {
+            byAddress.put(kind, new ConcurrentHashMap<>());
+            Limit limit = limits.get(kind);
+            bucketFactories.put(kind, key -> new TokenBucket(limit.rate, limit.burst));
+        }
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(config.getProperty("server.ratelimit.max.delay.ms", "1000")));
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("ratelimit-cleanup").factory());
+        cleaner.scheduleWithFixedDelay(this::dropIdleBuckets, CLEANUP_INTERVAL_SECONDS, CLEANUP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public TokenBucket addressBucket(Kind kind, String address) {
+        ConcurrentHashMap<String, TokenBucket> buckets = byAddress.get(kind);
+        TokenBucket bucket = buckets.get(address);
+        return bucket != null ? bucket : buckets.computeIfAbsent(address, bucketFactories.get(kind));
+    }
+
+    // Попытки входа под одним логином с разных адресов
+    public TokenBucket loginBucket(String login) {
+        TokenBucket bucket = byLogin.get(login);
+        return bucket != null ? bucket : byLogin.computeIfAbsent(login, bucketFactories.get(Kind.AUTH));
+    }
+
+    // Ведро чата ищется по имени при каждой проверке: новое соединение того же пользователя
+    // продолжает с тем же остатком, даже если старое ведро успели выбросить как полное
+    public TokenBucket userBucket(String username) {
+        TokenBucket bucket = byUser.get(username);
+        return bucket != null ? bucket : byUser.computeIfAbsent(username, bucketFactories.get(Kind.CHAT));
+    }
+
+    // canDelay = false, если поток обработки общий (NIO): там DELAY работает как REJECT
+    public Verdict check(Kind kind, TokenBucket bucket, boolean canDelay) {
+        Limit limit = limits.get(kind);
+        boolean delay = limit.policy == OverflowPolicy.DELAY && canDelay;
+        long wait = bucket.tryAcquire(System.nanoTime(), delay ? maxDelayNanos : 0);
+        if (wait == 0) {
+            return Verdict.ALLOW;
+        }
+        if (wait > 0) {
+            metrics.increment(limit.delayedCounter);
+            LockSupport.parkNanos(wait);
+            return Verdict.ALLOW;
+        }
+        if (limit.policy == OverflowPolicy.DISCONNECT) {
+            metrics.increment(limit.disconnectedCounter);
+            return Verdict.DISCONNECT;
+        }
+        metrics.increment(limit.rejectedCounter);
+        return Verdict.REJECT;
+    }
+
+    private void dropIdleBuckets() {
+        long now = System.nanoTime();
+        for (ConcurrentHashMap<String, TokenBucket> buckets : byAddress.values()) {
+            buckets.values().removeIf(bucket -> bucket.isIdle(now));
+        }
+        byLogin.values().removeIf(bucket -> bucket.isIdle(now));
+        byUser.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    private static final class Limit {
+        private final double rate;
+        private final int burst;
+        private final OverflowPolicy policy;
+        // Имена счётчиков собраны заранее, чтобы проверка не собирала строки
+        private final String rejectedCounter;
+        private final String delayedCounter;
+        private final String disconnectedCounter;
+
+        private Limit(Kind kind, double rate, int burst, OverflowPolicy policy) {
+            this.rate = rate;
+            this.burst = burst;
+            this.policy = policy;
+            String prefix = "ratelimit." + kind.name().toLowerCase(Locale.ROOT);
+            this.rejectedCounter = prefix + ".rejected";
+            this.delayedCounter = prefix + ".delayed";
+            this.disconnectedCounter = prefix + ".disconnected";
+        }
+
+        private static Limit from(Properties config, Kind kind, double defaultRate, int defaultBurst, OverflowPolicy defaultPolicy) {
+            String prefix = "server.ratelimit." + kind.name().toLowerCase(Locale.ROOT);
+            double rate = Double.parseDouble(config.getProperty(prefix + ".rate", String.valueOf(defaultRate)));
+            int burst = Integer.parseInt(config.getProperty(prefix + ".burst", String.valueOf(defaultBurst)));
+            String policy = config.getProperty(prefix + ".policy");
+            return new Limit(kind, rate, burst, policy == null ? defaultPolicy : OverflowPolicy.fromProperty(policy));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package chat.server.ratelimit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ведро токенов в форме GCRA: всё состояние — одно число, «теоретическое время прихода»
+// следующего запроса. Проверка — один CAS, без замков и без выделения памяти.
+public class TokenBucket {
+    private final long intervalNanos;  // Время пополнения одного токена
+    private final long toleranceNanos; // Запас на burst запросов подряд
+    private final AtomicLong theoreticalArrival;
+
+    TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    // -1 — токена нет даже с учётом maxWaitNanos; иначе сколько наносекунд подождать (0 — сразу)
+    long tryAcquire(long now, long maxWaitNanos) {
+        while (true) {
+            long current = theoreticalArrival.get();
+            long next = Math.max(current, now) + intervalNanos;
+            long wait = next - now - toleranceNanos - intervalNanos;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return Math.max(0, wait);
+            }
+        }
+    }
+
+    // Ведро полное: его можно выбросить, новое будет в том же состоянии
+    boolean isIdle(long now) {
+        return theoreticalArrival.get() <= now;
+    }
+}